@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.encryptor.AesCbcChunkEncryptor;
+import com.jungle.localmediaserver.encryptor.AesCtrEncryptor;
+import com.jungle.localmediaserver.provider.BlockCache;
+import com.jungle.localmediaserver.provider.ChunkedContainer;
+import com.jungle.localmediaserver.provider.ChunkedContainerWriter;
+import com.jungle.localmediaserver.provider.ChunkedEncryptedMediaProvider;
+import com.jungle.localmediaserver.provider.EncryptedMediaProvider;
+import com.jungle.localmediaserver.provider.GrowingFileMediaProvider;
+import com.jungle.localmediaserver.provider.MappedFileMediaProvider;
+import com.jungle.localmediaserver.provider.MediaDataProvider;
+import com.jungle.localmediaserver.provider.RawFileMediaProvider;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/*
+ * Media files of the benchmarks, written once per trial into a temp directory.
+ *
+ *      raw         random bytes
+ *      aesCtr      raw encrypted with AES-CTR          (EncryptedMediaProvider)
+ *      chunked     raw in a ChunkedContainer, AES-CBC  (ChunkedEncryptedMediaProvider)
+ *      tailMoov    MP4 with moov after mdat            (FastStartMediaProvider)
+ *
+ * Contents are random, so nothing is helped by compression in the OS.
+ */
+class BenchmarkFiles {
+
+    static final String KIND_RAW = "raw";
+    static final String KIND_ZERO_COPY = "zeroCopy";
+    static final String KIND_MMAP = "mmap";
+    static final String KIND_CACHED = "cached";
+    static final String KIND_AES_CTR = "aesCtr";
+    static final String KIND_AES_CTR_PARALLEL = "aesCtrParallel";
+    static final String KIND_CHUNKED = "chunked";
+    static final String KIND_CHUNKED_PARALLEL = "chunkedParallel";
+    static final String KIND_GROWING = "growing";
+
+    private static final byte[] AES_KEY = new byte[16];
+    private static final byte[] AES_COUNTER = new byte[16];
+
+    static {
+        for (int i = 0; i < AES_KEY.length; ++i) {
+            AES_KEY[i] = (byte) i;
+            AES_COUNTER[i] = (byte) (0xf0 + i);
+        }
+    }
+
+
+    private File mDirectory;
+    private File mRawFile;
+    private File mAesCtrFile;
+    private File mChunkedFile;
+    private File mTailMoovFile;
+
+
+    /**
+     * @param length bytes of media in each file.
+     */
+    BenchmarkFiles(long length) throws IOException {
+        mDirectory = File.createTempFile("lms-bench", "");
+        if (!mDirectory.delete() || !mDirectory.mkdirs()) {
+            throw new IOException("Create Benchmark Directory FAILED!");
+        }
+
+        mRawFile = new File(mDirectory, "raw.mp4");
+        mAesCtrFile = new File(mDirectory, "aes-ctr.mp4");
+        mChunkedFile = new File(mDirectory, "chunked.lmsc");
+        mTailMoovFile = new File(mDirectory, "tail-moov.mp4");
+
+        writeRandom(mRawFile, length);
+        encryptAesCtr(mRawFile, mAesCtrFile);
+        if (!ChunkedContainerWriter.encryptFile(mRawFile.getPath(), mChunkedFile.getPath(),
+                new AesCbcChunkEncryptor(), AES_KEY, ChunkedContainer.DEFAULT_CHUNK_SIZE)) {
+            throw new IOException("Write Chunked Container FAILED!");
+        }
+
+        writeTailMoov(mTailMoovFile, length);
+    }
+
+    File getRawFile() {
+        return mRawFile;
+    }
+
+    File getTailMoovFile() {
+        return mTailMoovFile;
+    }
+
+    /**
+     * @return a new provider of kind, see the KIND_ constants.
+     */
+    MediaDataProvider createProvider(String kind) {
+        if (KIND_RAW.equals(kind)) {
+            RawFileMediaProvider provider = new RawFileMediaProvider(mRawFile.getPath());
+            provider.setZeroCopyEnabled(false);
+            return provider;
+        } else if (KIND_ZERO_COPY.equals(kind)) {
+            RawFileMediaProvider provider = new RawFileMediaProvider(mRawFile.getPath());
+            provider.setZeroCopyEnabled(true);
+            return provider;
+        } else if (KIND_MMAP.equals(kind)) {
+            return new MappedFileMediaProvider(mRawFile.getPath());
+        } else if (KIND_CACHED.equals(kind)) {
+            RawFileMediaProvider provider = new RawFileMediaProvider(mRawFile.getPath());
+            provider.setZeroCopyEnabled(false);
+            provider.setBlockCache(new BlockCache(BlockCache.DEFAULT_BLOCK_SIZE,
+                    2 * mRawFile.length(), false));
+            return provider;
+        } else if (KIND_AES_CTR.equals(kind) || KIND_AES_CTR_PARALLEL.equals(kind)) {
+            EncryptedMediaProvider provider = new EncryptedMediaProvider(
+                    mAesCtrFile.getPath(), new AesCtrEncryptor(AES_COUNTER), AES_KEY);
+            provider.setParallelDecryptEnabled(KIND_AES_CTR_PARALLEL.equals(kind));
+            return provider;
+        } else if (KIND_CHUNKED.equals(kind) || KIND_CHUNKED_PARALLEL.equals(kind)) {
+            ChunkedEncryptedMediaProvider provider = new ChunkedEncryptedMediaProvider(
+                    mChunkedFile.getPath(), new AesCbcChunkEncryptor(), AES_KEY);
+            provider.setParallelDecryptEnabled(KIND_CHUNKED_PARALLEL.equals(kind));
+            return provider;
+        } else if (KIND_GROWING.equals(kind)) {
+            // Written but not finished, every send checks the available length.
+            GrowingFileMediaProvider provider = new GrowingFileMediaProvider(
+                    mRawFile.getPath(), mRawFile.length());
+            provider.onDataWritten(mRawFile.length());
+            return provider;
+        }
+
+        throw new IllegalArgumentException("Unknown provider kind " + kind);
+    }
+
+    void delete() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        mDirectory.delete();
+    }
+
+    private static void writeRandom(File file, long length) throws IOException {
+        Random random = new Random(length);
+        byte[] buffer = new byte[64 * FileUtils.KB];
+        OutputStream stream = new FileOutputStream(file);
+        try {
+            while (length > 0) {
+                int count = (int) Math.min(buffer.length, length);
+                random.nextBytes(buffer);
+                stream.write(buffer, 0, count);
+                length -= count;
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void encryptAesCtr(File plain, File encrypted) throws IOException {
+        AesCtrEncryptor encryptor = new AesCtrEncryptor(AES_COUNTER);
+        byte[] buffer = new byte[64 * FileUtils.KB];
+        FileInputStream input = new FileInputStream(plain);
+        OutputStream output = new FileOutputStream(encrypted);
+        try {
+            long position = 0;
+            int count;
+            while ((count = readFully(input, buffer)) > 0) {
+                encryptor.encrypt(position, buffer, 0, count, buffer, 0, AES_KEY);
+                output.write(buffer, 0, count);
+                position += count;
+            }
+        } finally {
+            input.close();
+            output.close();
+        }
+    }
+
+    private static int readFully(InputStream input, byte[] buffer) throws IOException {
+        int total = 0;
+        int count;
+        while (total < buffer.length
+                && (count = input.read(buffer, total, buffer.length - total)) > 0) {
+            total += count;
+        }
+
+        return total;
+    }
+
+    /**
+     * | ftyp | mdat (random) | moov/trak/mdia/minf/stbl/stco |, one chunk
+     * offset every 64 KB of mdat.
+     */
+    private static void writeTailMoov(File file, long length) throws IOException {
+        final int ftypSize = 24;
+        final int chunkCount = (int) Math.max(1, length / (64 * FileUtils.KB));
+        final int stcoSize = 16 + 4 * chunkCount;
+        final int stblSize = 8 + stcoSize;
+        final int minfSize = 8 + stblSize;
+        final int mdiaSize = 8 + minfSize;
+        final int trakSize = 8 + mdiaSize;
+        final int moovSize = 8 + trakSize;
+
+        Random random = new Random(length);
+        byte[] buffer = new byte[64 * FileUtils.KB];
+        DataOutputStream stream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            stream.writeInt(ftypSize);
+            stream.writeBytes("ftypisom");
+            stream.writeInt(0x200);
+            stream.writeBytes("isomiso2");
+
+            stream.writeInt((int) (8 + length));
+            stream.writeBytes("mdat");
+            for (long remain = length; remain > 0; ) {
+                int count = (int) Math.min(buffer.length, remain);
+                random.nextBytes(buffer);
+                stream.write(buffer, 0, count);
+                remain -= count;
+            }
+
+            stream.writeInt(moovSize);
+            stream.writeBytes("moov");
+            stream.writeInt(trakSize);
+            stream.writeBytes("trak");
+            stream.writeInt(mdiaSize);
+            stream.writeBytes("mdia");
+            stream.writeInt(minfSize);
+            stream.writeBytes("minf");
+            stream.writeInt(stblSize);
+            stream.writeBytes("stbl");
+            stream.writeInt(stcoSize);
+            stream.writeBytes("stco");
+            stream.writeInt(0);
+            stream.writeInt(chunkCount);
+            for (int i = 0; i < chunkCount; ++i) {
+                stream.writeInt(ftypSize + 8 + i * 64 * FileUtils.KB);
+            }
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.provider.MediaDataProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Time to first byte of a new connection while players hold idle keep-alive
+ * connections open, p50 / p99 from the sampled distribution:
+ *
+ *      idleConnections x (GET, then idle)      held through each iteration
+ *      new connection --GET--> first byte      measured
+ *
+ * Idle connections are reopened before each iteration, so they never reach
+ * the keep-alive timeout while measured.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConnectionLoadBenchmark {
+
+    private static final long FILE_LENGTH = 4 * FileUtils.MB;
+
+
+    @Param({"pool", "nio"})
+    public String engine;
+
+    @Param({"0", "16", "64"})
+    public int idleConnections;
+
+    private BenchmarkFiles mFiles;
+    private LocalMediaServer mServer;
+    private int mPort;
+    private byte[] mRequest;
+    private ArrayList<Socket> mIdleSockets = new ArrayList<>();
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFiles = new BenchmarkFiles(FILE_LENGTH);
+        MediaDataProvider provider = mFiles.createProvider(BenchmarkFiles.KIND_RAW);
+
+        final boolean isNio = "nio".equals(engine);
+        mServer = new LocalMediaServer() {
+            @Override
+            protected SessionEngine createSessionEngine() {
+                return isNio ? new SelectorEngine() : new WorkerPoolEngine();
+            }
+        };
+
+        String url = mServer.prepare(mFiles.getRawFile().getPath(), provider);
+        if (url == null || !mServer.start()) {
+            throw new IOException("Start Server FAILED!");
+        }
+
+        URL parsedUrl = new URL(url);
+        mPort = parsedUrl.getPort();
+        mRequest = ("GET " + parsedUrl.getFile() + " HTTP/1.1\r\n"
+                + "Host: 127.0.0.1\r\n"
+                + "Range: bytes=0-1023\r\n"
+                + "\r\n").getBytes("ISO-8859-1");
+    }
+
+    @Setup(Level.Iteration)
+    public void openIdleConnections() throws IOException {
+        closeIdleConnections();
+        for (int i = 0; i < idleConnections; ++i) {
+            Socket socket = new Socket("127.0.0.1", mPort);
+            mIdleSockets.add(socket);
+            socket.getOutputStream().write(mRequest);
+            readResponse(socket.getInputStream());
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeIdleConnections() {
+        for (Socket socket : mIdleSockets) {
+            FileUtils.closeStream(socket);
+        }
+
+        mIdleSockets.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mServer.stop();
+        mFiles.delete();
+    }
+
+    @Benchmark
+    public int firstByte() throws IOException {
+        Socket socket = new Socket("127.0.0.1", mPort);
+        try {
+            socket.setTcpNoDelay(true);
+            OutputStream output = socket.getOutputStream();
+            output.write(mRequest);
+            output.flush();
+
+            int first = socket.getInputStream().read();
+            if (first < 0) {
+                throw new EOFException("Connection Closed!");
+            }
+
+            return first;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Read the header & the 1 KB body of a response.
+     */
+    private static void readResponse(InputStream input) throws IOException {
+        byte[] buffer = new byte[4 * FileUtils.KB];
+        int length = 0;
+        int headerEnd = -1;
+        while (headerEnd < 0 || length < headerEnd + FileUtils.KB) {
+            int count = input.read(buffer, length, buffer.length - length);
+            if (count < 0) {
+                throw new EOFException("Connection Closed!");
+            }
+
+            length += count;
+            for (int i = 3; headerEnd < 0 && i < length; ++i) {
+                if (buffer[i] == '\n' && buffer[i - 3] == '\r') {
+                    headerEnd = i + 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Request headers as players send them, parsed from one fill() each:
+ *
+ *      single      one GET with Range & keep-alive
+ *      pipelined   8 GETs received in one read
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpRequestParserBenchmark {
+
+    private static final int PIPELINED_COUNT = 8;
+
+    private static final String REQUEST = "GET /%2Fsdcard%2FMovies%2Fvideo.mp4 HTTP/1.1\r\n"
+            + "User-Agent: stagefright/1.2 (Linux;Android 6.0.1)\r\n"
+            + "Host: 127.0.0.1:43210\r\n"
+            + "Connection: Keep-Alive\r\n"
+            + "Accept-Encoding: gzip\r\n"
+            + "X-Playback-Session-Id: 1A2B3C4D-5E6F-7081-92A3-B4C5D6E7F809\r\n"
+            + "Range: bytes=1048576-\r\n"
+            + "\r\n";
+
+
+    private HttpRequestParser mParser;
+    private ByteArrayInputStream mSingle;
+    private ByteArrayInputStream mPipelined;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws UnsupportedEncodingException {
+        mParser = new HttpRequestParser();
+        mSingle = new ByteArrayInputStream(REQUEST.getBytes("ISO-8859-1"));
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < PIPELINED_COUNT; ++i) {
+            builder.append(REQUEST);
+        }
+
+        mPipelined = new ByteArrayInputStream(builder.toString().getBytes("ISO-8859-1"));
+    }
+
+    @Benchmark
+    public HttpRequest single() throws IOException {
+        mSingle.reset();
+        mParser.fill(mSingle);
+        return mParser.parse();
+    }
+
+    @Benchmark
+    public void pipelined(Blackhole blackhole) throws IOException {
+        mPipelined.reset();
+        mParser.fill(mPipelined);
+        for (int i = 0; i < PIPELINED_COUNT; ++i) {
+            HttpRequest request = mParser.parse();
+            blackhole.consume(request.getRange());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.provider.MediaDataProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * From a parsed request to the encoded response header, as sessions do:
+ *
+ *      HttpResponse.create(request, registry) --> HttpResponseWriter.encode()
+ *
+ *      full        GET without Range                   200
+ *      range       GET Range: bytes=a-                 206
+ *      multipart   GET Range: bytes=a-b,c-d,e-f        206 multipart/byteranges
+ *      head        HEAD, probe of players              200 without body
+ *      options     OPTIONS                             200 Allow
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpResponseWriterBenchmark {
+
+    private static final long FILE_LENGTH = FileUtils.MB;
+
+
+    @Param({"full", "range", "multipart", "head", "options"})
+    public String request;
+
+    private BenchmarkFiles mFiles;
+    private MediaRegistry mRegistry;
+    private HttpRequestParser mParser;
+    private HttpRequest mRequest;
+    private HttpResponseWriter mWriter;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFiles = new BenchmarkFiles(FILE_LENGTH);
+        String path = mFiles.getRawFile().getPath();
+        MediaDataProvider provider = mFiles.createProvider(BenchmarkFiles.KIND_RAW);
+        provider.getContentType();
+
+        mRegistry = new MediaRegistry();
+        mRegistry.register(path, provider);
+        mWriter = new HttpResponseWriter();
+
+        String method = "GET";
+        String range = null;
+        if ("range".equals(request)) {
+            range = "bytes=524288-";
+        } else if ("multipart".equals(request)) {
+            range = "bytes=0-1023,262144-327679,-4096";
+        } else if ("head".equals(request)) {
+            method = "HEAD";
+        } else if ("options".equals(request)) {
+            method = "OPTIONS";
+        }
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(method).append(" /").append(URLEncoder.encode(path, "UTF-8"))
+                .append(" HTTP/1.1\r\n")
+                .append("Host: 127.0.0.1\r\n")
+                .append("Connection: keep-alive\r\n");
+        if (range != null) {
+            builder.append("Range: ").append(range).append("\r\n");
+        }
+
+        builder.append("\r\n");
+
+        // The parser reuses its request, it is parsed once and kept.
+        mParser = new HttpRequestParser();
+        mParser.fill(new ByteArrayInputStream(builder.toString().getBytes("ISO-8859-1")));
+        mRequest = mParser.parse();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mRegistry.clear();
+        mFiles.delete();
+    }
+
+    @Benchmark
+    public int createAndEncode() {
+        HttpResponse response = HttpResponse.create(mRequest, mRegistry);
+        response.setKeepAlive(mRequest.isKeepAlive());
+        ByteBuffer header = mWriter.encode(response);
+        return header.remaining();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.log.MediaLog;
+import com.jungle.localmediaserver.provider.MediaTransfer;
+import com.jungle.localmediaserver.stats.ServerStats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Per-chunk & per-request bookkeeping on the streaming path, which must stay
+ * in the nanoseconds: disabled log calls, stats counters & bandwidth flows
+ * shared by 4 sessions, and the transfer tracker of each request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InstrumentationBenchmark {
+
+    private static final int CHUNK_SIZE = 64 * FileUtils.KB;
+
+
+    private ServerStats mStats;
+    private BandwidthScheduler mUnshapedScheduler;
+    private BandwidthScheduler mShapedScheduler;
+    private TransferTracker mTracker;
+    private HttpRequestParser mParser;
+    private HttpRequest mRequest;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        MediaLog.setLevel(MediaLog.WARN);
+        mStats = new ServerStats();
+        mUnshapedScheduler = new BandwidthScheduler(new ServerConfig());
+
+        // High enough to never delay, only the token accounting is measured.
+        ServerConfig shapedConfig = new ServerConfig();
+        shapedConfig.setGlobalRateLimit(Long.MAX_VALUE / 4);
+        mShapedScheduler = new BandwidthScheduler(shapedConfig);
+
+        mTracker = new TransferTracker(new ServerConfig());
+        mParser = new HttpRequestParser();
+        mParser.fill(new ByteArrayInputStream(("GET /video.mp4 HTTP/1.1\r\n"
+                + "X-Playback-Session-Id: 1A2B3C4D\r\n"
+                + "Range: bytes=0-\r\n\r\n").getBytes("ISO-8859-1")));
+        mRequest = mParser.parse();
+    }
+
+    @Benchmark
+    public void logDisabled() {
+        MediaLog.d(ServerHttpSession.TAG, "Chunk Sent, start = %d, count = %d.",
+                1024L * 1024L, CHUNK_SIZE);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void statsProviderRead() {
+        mStats.onProviderRead(CHUNK_SIZE, 20000);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void statsCacheRead() {
+        mStats.onCacheRead(true);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long unshapedFlow(Flows flows) {
+        long delay = flows.mUnshaped.getDelay();
+        flows.mUnshaped.onSent(CHUNK_SIZE);
+        return delay;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long shapedFlow(Flows flows) {
+        long delay = flows.mShaped.getDelay();
+        flows.mShaped.onSent(CHUNK_SIZE);
+        return delay;
+    }
+
+    @Benchmark
+    public String trackTransfer() {
+        MediaTransfer transfer = new MediaTransfer();
+        String key = mTracker.begin(mRequest, transfer);
+        mTracker.end(key, transfer);
+        return key;
+    }
+
+
+    /**
+     * Bandwidth flows of one session.
+     */
+    @State(Scope.Thread)
+    public static class Flows {
+
+        private BandwidthScheduler.Flow mUnshaped;
+        private BandwidthScheduler.Flow mShaped;
+
+        @Setup(Level.Trial)
+        public void setUp(InstrumentationBenchmark benchmark) {
+            mUnshaped = benchmark.mUnshapedScheduler.openFlow();
+            mUnshaped.begin(BandwidthScheduler.Priority.FOREGROUND);
+            mShaped = benchmark.mShapedScheduler.openFlow();
+            mShaped.begin(BandwidthScheduler.Priority.FOREGROUND);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.encryptor.AesCtrEncryptor;
+import com.jungle.localmediaserver.log.MediaLog;
+import com.jungle.localmediaserver.provider.EncryptedMediaProvider;
+import com.jungle.localmediaserver.provider.MappedFileMediaProvider;
+import com.jungle.localmediaserver.provider.MediaDataProvider;
+import com.jungle.localmediaserver.provider.RawFileMediaProvider;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Regression check of offsets beyond 2^31 & 2^32, on a sparse 5 GB file:
+ *
+ *      |0 ......... 2^31 ......... 2^32 ......... 5 GB|
+ *                    ^ probe        ^ probe        ^ probe (last bytes)
+ *
+ * Random bytes are written at each probe (encrypted at their offset for the
+ * AES-CTR file), then for the raw, encrypted & mmap providers, on both
+ * engines: Content-Length of GET & HEAD, Content-Range & body of a range
+ * at each probe, and readVideoData() at each probe.
+ *
+ *      ./gradlew :benchmark:largeFileCheck
+ *
+ * Needs a file system with sparse files, nothing is written but the probes.
+ */
+public class LargeFileCheck {
+
+    private static final long FILE_LENGTH = 5L * FileUtils.GB;
+    private static final int PROBE_LENGTH = 64 * FileUtils.KB;
+    private static final long[] PROBES = {
+            (1L << 31) - PROBE_LENGTH / 2,
+            (1L << 32) + 12345,
+            FILE_LENGTH - PROBE_LENGTH,
+    };
+
+    private static final byte[] AES_KEY = new byte[16];
+    private static final byte[] AES_COUNTER = new byte[16];
+
+
+    private byte[][] mProbeData = new byte[PROBES.length][];
+    private int mFailures;
+
+
+    public static void main(String[] args) throws IOException {
+        File directory = args.length > 0
+                ? new File(args[0]) : new File(System.getProperty("java.io.tmpdir"));
+        // Full GETs are closed after their header, the failed sends are expected.
+        MediaLog.setLevel(MediaLog.NONE);
+
+        LargeFileCheck check = new LargeFileCheck();
+        int failures = check.run(directory);
+        System.out.println(failures == 0 ? "Large File Check OK." : failures + " Check(s) FAILED!");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private int run(File directory) throws IOException {
+        Random random = new Random(FILE_LENGTH);
+        for (int i = 0; i < PROBES.length; ++i) {
+            mProbeData[i] = new byte[PROBE_LENGTH];
+            random.nextBytes(mProbeData[i]);
+        }
+
+        File rawFile = new File(directory, "lms-large-raw.bin");
+        File encryptedFile = new File(directory, "lms-large-aes-ctr.bin");
+        try {
+            writeSparse(rawFile, false);
+            writeSparse(encryptedFile, true);
+
+            String[] engines = {"pool", "nio"};
+            for (String engine : engines) {
+                check(engine, "raw", new RawFileMediaProvider(rawFile.getPath()));
+                check(engine, "mmap", new MappedFileMediaProvider(rawFile.getPath()));
+                check(engine, "aesCtr", new EncryptedMediaProvider(encryptedFile.getPath(),
+                        new AesCtrEncryptor(AES_COUNTER), AES_KEY));
+            }
+        } finally {
+            rawFile.delete();
+            encryptedFile.delete();
+        }
+
+        return mFailures;
+    }
+
+    private void writeSparse(File file, boolean encrypt) throws IOException {
+        AesCtrEncryptor encryptor = new AesCtrEncryptor(AES_COUNTER);
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(FILE_LENGTH);
+            for (int i = 0; i < PROBES.length; ++i) {
+                byte[] data = mProbeData[i].clone();
+                if (encrypt) {
+                    // CTR works on blocks, encrypt from the block holding the probe.
+                    long blockStart = PROBES[i] - PROBES[i] % 16;
+                    int skip = (int) (PROBES[i] - blockStart);
+                    byte[] block = new byte[skip + data.length];
+                    System.arraycopy(data, 0, block, skip, data.length);
+                    encryptor.encrypt(blockStart, block, 0, block.length, block, 0, AES_KEY);
+                    System.arraycopy(block, skip, data, 0, data.length);
+                }
+
+                output.seek(PROBES[i]);
+                output.write(data);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private void check(String engine, String kind, MediaDataProvider provider)
+            throws IOException {
+
+        String name = engine + "/" + kind;
+        expect(name + " getContentLength", FILE_LENGTH, provider.getContentLength());
+
+        byte[] buffer = new byte[PROBE_LENGTH];
+        for (int i = 0; i < PROBES.length; ++i) {
+            Arrays.fill(buffer, (byte) 0);
+            readFully(provider, PROBES[i], buffer);
+            expect(name + " readVideoData @" + PROBES[i],
+                    Arrays.equals(mProbeData[i], buffer));
+        }
+
+        final boolean isNio = "nio".equals(engine);
+        LocalMediaServer server = new LocalMediaServer() {
+            @Override
+            protected SessionEngine createSessionEngine() {
+                return isNio ? new SelectorEngine() : new WorkerPoolEngine();
+            }
+        };
+
+        try {
+            String url = server.prepare(kind + ".bin", provider);
+            if (url == null || !server.start()) {
+                throw new IOException("Start Server FAILED!");
+            }
+
+            URL parsedUrl = new URL(url);
+            Response head = request(parsedUrl, "HEAD", null, 0);
+            expect(name + " HEAD Content-Length",
+                    String.valueOf(FILE_LENGTH), head.getHeader("Content-Length"));
+
+            Response full = request(parsedUrl, "GET", null, 0);
+            expect(name + " GET status", "200", full.mStatus);
+            expect(name + " GET Content-Length",
+                    String.valueOf(FILE_LENGTH), full.getHeader("Content-Length"));
+
+            for (int i = 0; i < PROBES.length; ++i) {
+                long start = PROBES[i];
+                long end = start + PROBE_LENGTH - 1;
+                Response range = request(parsedUrl, "GET",
+                        "bytes=" + start + "-" + end, PROBE_LENGTH);
+                expect(name + " range status @" + start, "206", range.mStatus);
+                expect(name + " Content-Length @" + start,
+                        String.valueOf(PROBE_LENGTH), range.getHeader("Content-Length"));
+                expect(name + " Content-Range @" + start,
+                        "bytes " + start + "-" + end + "/" + FILE_LENGTH,
+                        range.getHeader("Content-Range"));
+                expect(name + " body @" + start, Arrays.equals(mProbeData[i], range.mBody));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void readFully(MediaDataProvider provider, long position, byte[] buffer)
+            throws IOException {
+
+        int offset = 0;
+        while (offset < buffer.length) {
+            int count = provider.readVideoData(
+                    position + offset, buffer, offset, buffer.length - offset);
+            if (count <= 0) {
+                throw new EOFException("Read @" + (position + offset) + " FAILED!");
+            }
+
+            offset += count;
+        }
+    }
+
+    /**
+     * Send one request on a new connection, the body is read up to bodyLength
+     * bytes, then the connection is closed.
+     */
+    private static Response request(URL url, String method, String range, int bodyLength)
+            throws IOException {
+
+        Socket socket = new Socket("127.0.0.1", url.getPort());
+        try {
+            StringBuilder builder = new StringBuilder();
+            builder.append(method).append(' ').append(url.getFile()).append(" HTTP/1.1\r\n")
+                    .append("Host: 127.0.0.1\r\n")
+                    .append("Connection: close\r\n");
+            if (range != null) {
+                builder.append("Range: ").append(range).append("\r\n");
+            }
+
+            builder.append("\r\n");
+            OutputStream output = socket.getOutputStream();
+            output.write(builder.toString().getBytes("ISO-8859-1"));
+            output.flush();
+
+            InputStream input = socket.getInputStream();
+            StringBuilder header = new StringBuilder();
+            while (header.length() < 4 || header.lastIndexOf("\r\n\r\n") != header.length() - 4) {
+                int ch = input.read();
+                if (ch < 0) {
+                    throw new EOFException("Connection Closed!");
+                }
+
+                header.append((char) ch);
+            }
+
+            Response response = new Response(header.toString());
+            response.mBody = new byte[bodyLength];
+            int offset = 0;
+            while (offset < bodyLength) {
+                int count = input.read(response.mBody, offset, bodyLength - offset);
+                if (count < 0) {
+                    throw new EOFException("Body Truncated!");
+                }
+
+                offset += count;
+            }
+
+            return response;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void expect(String what, long expected, long actual) {
+        expect(what, String.valueOf(expected), String.valueOf(actual));
+    }
+
+    private void expect(String what, String expected, String actual) {
+        if (expected.equals(actual)) {
+            System.out.println("OK      " + what + ": " + actual);
+        } else {
+            System.out.println("FAILED  " + what + ": " + actual + ", expected " + expected);
+            ++mFailures;
+        }
+    }
+
+    private void expect(String what, boolean isMatched) {
+        expect(what, "match", isMatched ? "match" : "mismatch");
+    }
+
+
+    private static class Response {
+
+        private String mStatus;
+        private String mHeader;
+        private byte[] mBody;
+
+        Response(String header) {
+            mHeader = header;
+            int start = header.indexOf(' ') + 1;
+            mStatus = header.substring(start, start + 3);
+        }
+
+        String getHeader(String name) {
+            String prefix = "\r\n" + name + ": ";
+            int start = mHeader.indexOf(prefix);
+            if (start < 0) {
+                return null;
+            }
+
+            start += prefix.length();
+            return mHeader.substring(start, mHeader.indexOf('\r', start));
+        }
+    }
+}
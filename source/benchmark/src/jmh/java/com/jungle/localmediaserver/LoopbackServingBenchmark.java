@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.provider.MediaDataProvider;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The whole server over loopback, one keep-alive connection per benchmark thread:
+ *
+ *      client --GET Range: bytes=a-b--> engine (pool / nio) --> provider
+ *             <--206 + 1 MB body-------
+ *
+ * rangeGet reports ranges & bytes per second, head the latency of the probe
+ * players send before playing. Run with -t to compare engines under load.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackServingBenchmark {
+
+    private static final long FILE_LENGTH = 32 * FileUtils.MB;
+    private static final int RANGE_LENGTH = FileUtils.MB;
+
+
+    @Param({"pool", "nio"})
+    public String engine;
+
+    @Param({
+            BenchmarkFiles.KIND_ZERO_COPY,
+            BenchmarkFiles.KIND_MMAP,
+            BenchmarkFiles.KIND_RAW,
+            BenchmarkFiles.KIND_AES_CTR,
+            BenchmarkFiles.KIND_CHUNKED,
+    })
+    public String kind;
+
+    private BenchmarkFiles mFiles;
+    private LocalMediaServer mServer;
+    private int mPort;
+    private String mPath;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFiles = new BenchmarkFiles(FILE_LENGTH);
+        MediaDataProvider provider = mFiles.createProvider(kind);
+
+        final boolean isNio = "nio".equals(engine);
+        mServer = new LocalMediaServer() {
+            @Override
+            protected SessionEngine createSessionEngine() {
+                return isNio ? new SelectorEngine() : new WorkerPoolEngine();
+            }
+        };
+
+        String url = mServer.prepare(mFiles.getRawFile().getPath(), provider);
+        if (url == null || !mServer.start()) {
+            throw new IOException("Start Server FAILED!");
+        }
+
+        URL parsedUrl = new URL(url);
+        mPort = parsedUrl.getPort();
+        mPath = parsedUrl.getFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mServer.stop();
+        mFiles.delete();
+    }
+
+    @Benchmark
+    public long rangeGet(CountingClient client) throws IOException {
+        long start = client.nextRangeStart();
+        long count = client.request("GET", "bytes=" + start + "-" + (start + RANGE_LENGTH - 1));
+        client.bytes += count;
+        return count;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long head(Client client) throws IOException {
+        return client.request("HEAD", null);
+    }
+
+
+    /**
+     * Keep-alive connection of one benchmark thread, reopened when the
+     * server closes it.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        private LoopbackServingBenchmark mBenchmark;
+        private Socket mSocket;
+        private InputStream mInput;
+        private OutputStream mOutput;
+        private byte[] mBuffer = new byte[64 * FileUtils.KB];
+        private int mBuffered;
+
+        @Setup(Level.Trial)
+        public void setUp(LoopbackServingBenchmark benchmark) {
+            mBenchmark = benchmark;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            close();
+        }
+
+        /**
+         * @return body bytes received.
+         */
+        long request(String method, String range) throws IOException {
+            if (mSocket == null) {
+                mSocket = new Socket("127.0.0.1", mBenchmark.mPort);
+                mSocket.setTcpNoDelay(true);
+                mInput = mSocket.getInputStream();
+                mOutput = mSocket.getOutputStream();
+                mBuffered = 0;
+            }
+
+            StringBuilder builder = new StringBuilder(128);
+            builder.append(method).append(' ').append(mBenchmark.mPath).append(" HTTP/1.1\r\n")
+                    .append("Host: 127.0.0.1\r\n")
+                    .append("Connection: keep-alive\r\n");
+            if (range != null) {
+                builder.append("Range: ").append(range).append("\r\n");
+            }
+
+            builder.append("\r\n");
+            mOutput.write(builder.toString().getBytes("ISO-8859-1"));
+            mOutput.flush();
+
+            String header = readHeader();
+            if (!header.startsWith("HTTP/1.1 2")) {
+                throw new IOException("Unexpected Response: " + header);
+            }
+
+            long received = 0;
+            if (!"HEAD".equals(method)) {
+                received = skipBody(getContentLength(header));
+            }
+
+            if (header.contains("Connection: close")) {
+                close();
+            }
+
+            return received;
+        }
+
+        private String readHeader() throws IOException {
+            int scanned = 0;
+            while (true) {
+                for (int i = Math.max(3, scanned); i < mBuffered; ++i) {
+                    if (mBuffer[i] == '\n' && mBuffer[i - 1] == '\r'
+                            && mBuffer[i - 2] == '\n' && mBuffer[i - 3] == '\r') {
+                        String header = new String(mBuffer, 0, i + 1, "ISO-8859-1");
+                        System.arraycopy(mBuffer, i + 1, mBuffer, 0, mBuffered - i - 1);
+                        mBuffered -= i + 1;
+                        return header;
+                    }
+                }
+
+                scanned = mBuffered;
+                if (mBuffered == mBuffer.length) {
+                    throw new IOException("Response Header Too Large!");
+                }
+
+                int count = mInput.read(mBuffer, mBuffered, mBuffer.length - mBuffered);
+                if (count < 0) {
+                    throw new EOFException("Connection Closed!");
+                }
+
+                mBuffered += count;
+            }
+        }
+
+        private long skipBody(long length) throws IOException {
+            long remain = length - mBuffered;
+            mBuffered = 0;
+            while (remain > 0) {
+                int count = mInput.read(mBuffer, 0, (int) Math.min(mBuffer.length, remain));
+                if (count < 0) {
+                    throw new EOFException("Connection Closed!");
+                }
+
+                remain -= count;
+            }
+
+            return length;
+        }
+
+        private static long getContentLength(String header) throws IOException {
+            final String name = "Content-Length: ";
+            int start = header.indexOf(name);
+            if (start < 0) {
+                throw new IOException("No Content-Length!");
+            }
+
+            start += name.length();
+            return Long.parseLong(header.substring(start, header.indexOf('\r', start)));
+        }
+
+        private void close() {
+            FileUtils.closeStream(mSocket);
+            mSocket = null;
+        }
+    }
+
+
+    /**
+     * Client counting the body bytes received, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class CountingClient extends Client {
+
+        public long bytes;
+
+        private long mPosition;
+
+        @Setup(Level.Iteration)
+        public void resetCounters() {
+            bytes = 0;
+        }
+
+        long nextRangeStart() {
+            long start = mPosition;
+            mPosition = (mPosition + RANGE_LENGTH) % FILE_LENGTH;
+            return start;
+        }
+    }
+}
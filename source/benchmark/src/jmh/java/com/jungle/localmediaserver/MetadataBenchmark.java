@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.provider.ContentTypeDetector;
+import com.jungle.localmediaserver.provider.FastStartMediaProvider;
+import com.jungle.localmediaserver.provider.MediaDataProvider;
+import com.jungle.localmediaserver.provider.RawFileMediaProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Work done once per registered file: the faststart layout of a tail-moov
+ * MP4 (top-level boxes walked, moov read & patched), and content type
+ * detection from the first bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataBenchmark {
+
+    private static final long FILE_LENGTH = 64 * FileUtils.MB;
+
+
+    private BenchmarkFiles mFiles;
+    private RawFileMediaProvider mTailMoov;
+    private byte[] mHeader = new byte[ContentTypeDetector.HEADER_SIZE];
+    private int mHeaderLength;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFiles = new BenchmarkFiles(FILE_LENGTH);
+        mTailMoov = new RawFileMediaProvider(mFiles.getTailMoovFile().getPath());
+        mHeaderLength = mTailMoov.readVideoData(0, mHeader, 0, mHeader.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mTailMoov.clean();
+        mFiles.delete();
+    }
+
+    @Benchmark
+    public MediaDataProvider fastStartLayout() throws IOException {
+        FastStartMediaProvider provider = new FastStartMediaProvider(mTailMoov);
+        if (!provider.isRelocated()) {
+            throw new IOException("moov Not Relocated!");
+        }
+
+        return provider;
+    }
+
+    @Benchmark
+    public String detectContentType() {
+        return ContentTypeDetector.detect(mHeader, mHeaderLength);
+    }
+}
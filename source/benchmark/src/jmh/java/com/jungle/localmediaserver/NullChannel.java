@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/*
+ * Socket stand-in consuming everything written, so benchmarks measure the
+ * provider & the send path without the network stack. Bytes are copied out
+ * once as a socket copies them into the kernel, so memory mapped & direct
+ * buffers are not sent for free.
+ */
+class NullChannel implements GatheringByteChannel {
+
+    private byte[] mScratch = new byte[64 * FileUtils.KB];
+    private long mBytesWritten;
+
+
+    /**
+     * @return bytes written since the last call.
+     */
+    long takeBytesWritten() {
+        long count = mBytesWritten;
+        mBytesWritten = 0;
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int count = src.remaining();
+        while (src.hasRemaining()) {
+            src.get(mScratch, 0, Math.min(mScratch.length, src.remaining()));
+        }
+
+        mBytesWritten += count;
+        return count;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        long count = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            count += write(srcs[i]);
+        }
+
+        return count;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.provider.MediaDataProvider;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Sequential 1 MB ranges of each provider, sent the way sessions send them:
+ *
+ *      provider.sendVideoData() --> ChannelOutputStream (sendBufferSize) --> NullChannel
+ *
+ * "bytes" is reported per second next to the ranges per second. Zero-copy
+ * needs a real socket, see LoopbackServingBenchmark.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProviderThroughputBenchmark {
+
+    private static final long FILE_LENGTH = 32 * FileUtils.MB;
+    private static final int RANGE_LENGTH = FileUtils.MB;
+
+
+    @Param({
+            BenchmarkFiles.KIND_RAW,
+            BenchmarkFiles.KIND_MMAP,
+            BenchmarkFiles.KIND_CACHED,
+            BenchmarkFiles.KIND_AES_CTR,
+            BenchmarkFiles.KIND_AES_CTR_PARALLEL,
+            BenchmarkFiles.KIND_CHUNKED,
+            BenchmarkFiles.KIND_CHUNKED_PARALLEL,
+            BenchmarkFiles.KIND_GROWING,
+    })
+    public String kind;
+
+    @Param({"8192", "65536", "262144"})
+    public int sendBufferSize;
+
+    private BenchmarkFiles mFiles;
+    private MediaDataProvider mProvider;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFiles = new BenchmarkFiles(FILE_LENGTH);
+        mProvider = mFiles.createProvider(kind);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mProvider.clean();
+        mFiles.delete();
+    }
+
+    @Benchmark
+    public long sendRange(Session session) throws IOException {
+        long start = session.nextRangeStart();
+        if (!mProvider.sendVideoData(session.mStream, session.mChannel, start, RANGE_LENGTH)) {
+            throw new IOException("Send Range FAILED!");
+        }
+
+        session.mStream.flush();
+        long count = session.mChannel.takeBytesWritten();
+        session.bytes += count;
+        return count;
+    }
+
+
+    /**
+     * Send buffer & socket of one benchmark thread, walking through the file.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Session {
+
+        public long bytes;
+
+        private NullChannel mChannel;
+        private ChannelOutputStream mStream;
+        private long mPosition;
+
+        @Setup(Level.Trial)
+        public void setUp(ProviderThroughputBenchmark benchmark) {
+            mChannel = new NullChannel();
+            mStream = new ChannelOutputStream(mChannel, benchmark.sendBufferSize, false);
+        }
+
+        @Setup(Level.Iteration)
+        public void resetCounters() {
+            bytes = 0;
+        }
+
+        long nextRangeStart() {
+            long start = mPosition;
+            mPosition = (mPosition + RANGE_LENGTH) % FILE_LENGTH;
+            return start;
+        }
+    }
+}
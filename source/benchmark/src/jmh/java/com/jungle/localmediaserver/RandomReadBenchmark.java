@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.provider.MediaDataProvider;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * readVideoData() at random positions, the access pattern of seeking players
+ * on the non-blocking engine. Positions are not aligned to blocks or chunks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RandomReadBenchmark {
+
+    private static final long FILE_LENGTH = 32 * FileUtils.MB;
+
+
+    @Param({
+            BenchmarkFiles.KIND_RAW,
+            BenchmarkFiles.KIND_MMAP,
+            BenchmarkFiles.KIND_CACHED,
+            BenchmarkFiles.KIND_AES_CTR,
+            BenchmarkFiles.KIND_CHUNKED,
+    })
+    public String kind;
+
+    @Param({"4096", "65536"})
+    public int readSize;
+
+    private BenchmarkFiles mFiles;
+    private MediaDataProvider mProvider;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFiles = new BenchmarkFiles(FILE_LENGTH);
+        mProvider = mFiles.createProvider(kind);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mProvider.clean();
+        mFiles.delete();
+    }
+
+    @Benchmark
+    public int read(Reader reader) throws IOException {
+        long position = (long) (reader.mRandom.nextDouble() * (FILE_LENGTH - readSize));
+        int count = mProvider.readVideoData(position, reader.mBuffer, 0, readSize);
+        reader.bytes += count;
+        return count;
+    }
+
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Reader {
+
+        public long bytes;
+
+        private Random mRandom = new Random(42);
+        private byte[] mBuffer;
+
+        @Setup(Level.Trial)
+        public void setUp(RandomReadBenchmark benchmark) {
+            mBuffer = new byte[benchmark.readSize];
+        }
+
+        @Setup(Level.Iteration)
+        public void resetCounters() {
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/*
+ * Desktop JVM shim of android.util.Log for the benchmarks, messages go to stderr.
+ */
+public final class Log {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    private static final String LEVELS = "??VDIWEA";
+
+
+    private Log() {
+    }
+
+    public static int println(int priority, String tag, String msg) {
+        char level = priority >= 0 && priority < LEVELS.length() ? LEVELS.charAt(priority) : '?';
+        String line = level + "/" + tag + ": " + msg;
+        System.err.println(line);
+        return line.length();
+    }
+
+    public static String getStackTraceString(Throwable tr) {
+        if (tr == null) {
+            return "";
+        }
+
+        StringWriter writer = new StringWriter();
+        tr.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+}
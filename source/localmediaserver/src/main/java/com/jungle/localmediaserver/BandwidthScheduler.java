@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Pace response bodies of one engine with token buckets & priority classes.
+ *
+ *      body quantum of a session
+ *          |- session bucket     (ServerConfig.sessionRateLimit, each session)
+ *          |- background bucket  (ServerConfig.backgroundRateLimit, background
+ *          |                      sessions, only while a foreground body is sent)
+ *          |- global bucket      (ServerConfig.globalRateLimit, all sessions,
+ *                                 background ones leave a burst for foreground)
+ *          -> sent when no bucket is in debt, then charged to all of them
+ *
+ * Requests are foreground unless their URI asks "?priority=background" (e.g.
+ * prefetch or thumbnail extraction). The policy is work-conserving: without
+ * a foreground body in flight, background bodies only obey the session &
+ * global limits. Pacing the reads also paces the decrypt CPU of providers.
+ */
+public class BandwidthScheduler {
+
+    public static class Priority {
+        public static final int FOREGROUND = 0;
+        public static final int BACKGROUND = 1;
+    }
+
+
+    public static final String PRIORITY_PARAMETER = "priority";
+    public static final String PRIORITY_BACKGROUND = "background";
+
+    private static final int MAX_QUANTUM = 64 * FileUtils.KB;
+    private static final int MIN_QUANTUM = 4 * FileUtils.KB;
+    private static final long PAUSED_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+
+    private ServerConfig mConfig;
+    private TokenBucket mGlobalBucket;
+    private TokenBucket mBackgroundBucket;
+    private AtomicInteger mForegroundCount = new AtomicInteger();
+
+
+    public BandwidthScheduler(ServerConfig config) {
+        mConfig = config;
+        if (config.getGlobalRateLimit() > 0) {
+            mGlobalBucket = new TokenBucket(config.getGlobalRateLimit());
+        }
+
+        if (config.getBackgroundRateLimit() > 0) {
+            mBackgroundBucket = new TokenBucket(config.getBackgroundRateLimit());
+        }
+    }
+
+    public static int getPriority(HttpRequest request) {
+        String priority = request.getQueryParameter(PRIORITY_PARAMETER);
+        return PRIORITY_BACKGROUND.equalsIgnoreCase(priority)
+                ? Priority.BACKGROUND : Priority.FOREGROUND;
+    }
+
+    Flow openFlow() {
+        return new Flow();
+    }
+
+
+    /**
+     * Body pacing of one session, between begin() and end() of each response.
+     */
+    class Flow {
+
+        private TokenBucket mSessionBucket;
+        private int mPriority = Priority.FOREGROUND;
+        private boolean mIsActive = false;
+
+        Flow() {
+            if (mConfig.getSessionRateLimit() > 0) {
+                mSessionBucket = new TokenBucket(mConfig.getSessionRateLimit());
+            }
+        }
+
+        void begin(int priority) {
+            end();
+            mPriority = priority;
+            mIsActive = true;
+            if (priority == Priority.FOREGROUND) {
+                mForegroundCount.incrementAndGet();
+            }
+        }
+
+        void end() {
+            if (mIsActive && mPriority == Priority.FOREGROUND) {
+                mForegroundCount.decrementAndGet();
+            }
+
+            mIsActive = false;
+        }
+
+        /**
+         * Whether bodies must be sent in quanta, checking getDelay() before each.
+         */
+        boolean isShaped() {
+            return mSessionBucket != null || mGlobalBucket != null
+                    || mPriority == Priority.BACKGROUND;
+        }
+
+        /**
+         * Bytes to send between two getDelay() checks, about 1/8 second of
+         * the lowest rate applying to this flow.
+         */
+        int getQuantum() {
+            long rate = Long.MAX_VALUE;
+            if (mSessionBucket != null) {
+                rate = mSessionBucket.getRate();
+            }
+
+            if (mGlobalBucket != null) {
+                rate = Math.min(rate, mGlobalBucket.getRate());
+            }
+
+            if (mPriority == Priority.BACKGROUND && mBackgroundBucket != null) {
+                rate = Math.min(rate, mBackgroundBucket.getRate());
+            }
+
+            return (int) Math.max(MIN_QUANTUM, Math.min(MAX_QUANTUM, rate / 8));
+        }
+
+        /**
+         * @return nanoseconds to wait before the next quantum, 0 to send now.
+         */
+        long getDelay() {
+            long now = System.nanoTime();
+            long delay = 0;
+            if (mSessionBucket != null) {
+                delay = mSessionBucket.getDelay(0, now);
+            }
+
+            boolean isBackground = mPriority == Priority.BACKGROUND;
+            if (isBackground && mForegroundCount.get() > 0) {
+                if (mBackgroundBucket == null) {
+                    return PAUSED_RETRY_NANOS;
+                }
+
+                delay = Math.max(delay, mBackgroundBucket.getDelay(0, now));
+            }
+
+            if (mGlobalBucket != null) {
+                // Background flows leave a burst of tokens to foreground ones.
+                long reserve = isBackground ? mGlobalBucket.getCapacity() / 2 : 0;
+                delay = Math.max(delay, mGlobalBucket.getDelay(reserve, now));
+            }
+
+            return delay;
+        }
+
+        /**
+         * Charge count bytes sent after getDelay() returned 0.
+         */
+        void onSent(long count) {
+            if (count <= 0) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            if (mSessionBucket != null) {
+                mSessionBucket.take(count, now);
+            }
+
+            if (mPriority == Priority.BACKGROUND && mBackgroundBucket != null
+                    && mForegroundCount.get() > 0) {
+                mBackgroundBucket.take(count, now);
+            }
+
+            if (mGlobalBucket != null) {
+                mGlobalBucket.take(count, now);
+            }
+        }
+
+        /**
+         * Block until the next quantum may be sent, for blocking sessions.
+         */
+        void await() throws InterruptedIOException {
+            long delay;
+            while ((delay = getDelay()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Session Interrupted!");
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Tokens are bytes, refilled at rate per second up to a quarter second
+     * burst. Takes may run the bucket into debt, which blocks later sends
+     * until it is paid back.
+     */
+    private static class TokenBucket {
+
+        private long mRate;
+        private long mCapacity;
+        private double mTokens;
+        private long mLastRefillTime;
+
+        TokenBucket(long rate) {
+            mRate = rate;
+            mCapacity = Math.max(MAX_QUANTUM, rate / 4);
+            mTokens = mCapacity;
+            mLastRefillTime = System.nanoTime();
+        }
+
+        long getRate() {
+            return mRate;
+        }
+
+        long getCapacity() {
+            return mCapacity;
+        }
+
+        /**
+         * @return nanoseconds until the bucket holds more than threshold tokens.
+         */
+        synchronized long getDelay(long threshold, long now) {
+            refill(now);
+            if (mTokens >= threshold) {
+                return 0;
+            }
+
+            return Math.max(1, (long) ((threshold - mTokens) * NANOS_PER_SECOND / mRate));
+        }
+
+        synchronized void take(long count, long now) {
+            refill(now);
+            mTokens -= count;
+        }
+
+        private void refill(long now) {
+            long elapsed = now - mLastRefillTime;
+            if (elapsed <= 0) {
+                return;
+            }
+
+            mTokens = Math.min(mCapacity, mTokens + elapsed * mRate / NANOS_PER_SECOND);
+            mLastRefillTime = now;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Buffered output of a session, reused by all responses on the connection.
+ *
+ * Small writes (headers, error messages) are coalesced in the send buffer.
+ * Large writes (body chunks) go out together with the buffered bytes in one
+ * gathering write, so headers and the first body bytes share one syscall,
+ * and later chunks are written without copying. Data reaches the socket
+ * only when the buffer fills, or on flush() at the end of a response.
+ */
+class ChannelOutputStream extends OutputStream {
+
+    private WritableByteChannel mChannel;
+    private ByteBuffer mBuffer;
+    private ByteBuffer[] mGatherBuffers = new ByteBuffer[2];
+    private byte[] mSingleByte = new byte[1];
+    private long mFirstWriteTime;
+
+
+    ChannelOutputStream(WritableByteChannel channel, int bufferSize, boolean direct) {
+        mChannel = channel;
+        mBuffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mSingleByte[0] = (byte) b;
+        write(mSingleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        if (count < mBuffer.capacity() / 4) {
+            if (count > mBuffer.remaining()) {
+                drain();
+            }
+
+            mBuffer.put(buffer, offset, count);
+            return;
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(buffer, offset, count);
+        mBuffer.flip();
+        if (mBuffer.hasRemaining() && mChannel instanceof GatheringByteChannel) {
+            onWrite();
+            mGatherBuffers[0] = mBuffer;
+            mGatherBuffers[1] = data;
+            while (data.hasRemaining()) {
+                ((GatheringByteChannel) mChannel).write(mGatherBuffers);
+            }
+
+            mGatherBuffers[1] = null;
+        } else {
+            writeFully(mBuffer);
+            writeFully(data);
+        }
+
+        mBuffer.clear();
+    }
+
+    /**
+     * Write the buffered bytes to the socket.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * The socket is owned by the session, closing only flushes.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        writeFully(mBuffer);
+        mBuffer.clear();
+    }
+
+    /**
+     * Start timing the next response, see getFirstWriteTime().
+     */
+    void resetFirstWriteTime() {
+        mFirstWriteTime = 0;
+    }
+
+    /**
+     * @return System.nanoTime() when bytes first reached the channel since
+     * resetFirstWriteTime(), 0 if none did.
+     */
+    long getFirstWriteTime() {
+        return mFirstWriteTime;
+    }
+
+    private void onWrite() {
+        if (mFirstWriteTime == 0) {
+            mFirstWriteTime = System.nanoTime();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        if (buffer.hasRemaining()) {
+            onWrite();
+        }
+
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+
+/*
+ * Decoded Http request header, filled by HttpRequestParser.
+ *
+ *      GET http://localhost:port/file_path HTTP/1.1
+ *          |
+ *          |- Range: bytes=0-xxx
+ *          |- If-Range: etag / date
+ *          |- Connection: keep-alive
+ *          |- X-Playback-Session-Id: id of the player instance
+ *          |- Content-Length / Transfer-Encoding: a body, never read, closes the connection
+ */
+public class HttpRequest {
+
+    public static final int MAX_REQUEST_HEADER_SIZE = 8 * FileUtils.KB;
+
+    public static final String METHOD_GET = "GET";
+    public static final String METHOD_HEAD = "HEAD";
+    public static final String METHOD_OPTIONS = "OPTIONS";
+    public static final String HTTP_1_0 = "HTTP/1.0";
+    public static final String HTTP_1_1 = "HTTP/1.1";
+
+
+    public static class HttpRequestException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private int mStatusCode;
+
+        public HttpRequestException(int statusCode, String message) {
+            super(message);
+            mStatusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+    }
+
+
+    String mMethod;
+    String mUri;
+    String mVersion;
+    String mRange;
+    String mIfRange;
+    String mPlaybackSessionId;
+    boolean mConnectionClose;
+    boolean mConnectionKeepAlive;
+    boolean mHasBody;
+
+
+    HttpRequest() {
+    }
+
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    public String getUri() {
+        return mUri;
+    }
+
+    /**
+     * Decoded path of the request URI, without the leading "/" and the query.
+     */
+    public String getPath() {
+        String path = mUri;
+        int schemePos = path.indexOf("://");
+        if (schemePos >= 0) {
+            int pathPos = path.indexOf('/', schemePos + 3);
+            path = pathPos >= 0 ? path.substring(pathPos) : "/";
+        }
+
+        int queryPos = path.indexOf('?');
+        if (queryPos >= 0) {
+            path = path.substring(0, queryPos);
+        }
+
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+
+        try {
+            return URLDecoder.decode(path, "UTF-8");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return decoded value of the first query parameter named name, null if absent.
+     */
+    public String getQueryParameter(String name) {
+        int queryPos = mUri.indexOf('?');
+        if (queryPos < 0) {
+            return null;
+        }
+
+        for (String parameter : mUri.substring(queryPos + 1).split("&")) {
+            int separatePos = parameter.indexOf('=');
+            String key = separatePos >= 0 ? parameter.substring(0, separatePos) : parameter;
+            if (!key.equals(name)) {
+                continue;
+            }
+
+            try {
+                return separatePos >= 0
+                        ? URLDecoder.decode(parameter.substring(separatePos + 1), "UTF-8") : "";
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return value of the Range header, null if absent.
+     */
+    public String getRange() {
+        return mRange;
+    }
+
+    /**
+     * @return value of the If-Range header, null if absent.
+     */
+    public String getIfRange() {
+        return mIfRange;
+    }
+
+    /**
+     * @return value of the X-Playback-Session-Id header sent by some players,
+     * null if absent.
+     */
+    public String getPlaybackSessionId() {
+        return mPlaybackSessionId;
+    }
+
+    public boolean isKeepAlive() {
+        // The body would be parsed as the next request.
+        if (mHasBody) {
+            return false;
+        }
+
+        if (HTTP_1_0.equalsIgnoreCase(mVersion)) {
+            return mConnectionKeepAlive;
+        }
+
+        return !mConnectionClose;
+    }
+
+    void reset() {
+        mMethod = null;
+        mUri = null;
+        mVersion = null;
+        mRange = null;
+        mIfRange = null;
+        mPlaybackSessionId = null;
+        mConnectionClose = false;
+        mConnectionKeepAlive = false;
+        mHasBody = false;
+    }
+}
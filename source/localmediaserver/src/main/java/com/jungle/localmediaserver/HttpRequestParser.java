@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/*
+ * Incremental request header parser of one connection.
+ *
+ *      fill() --> |<- parsed ->|<- scanning ->|<- free ->|   (MAX_REQUEST_HEADER_SIZE)
+ *                 start        lineStart      limit
+ *
+ * Bytes are received into one reused buffer, and complete lines are parsed in
+ * place as soon as they arrive, so headers split across reads are kept, and
+ * bytes of pipelined requests stay in the buffer for the next parse().
+ * Only the fields used by the server are extracted (method, URI, version,
+ * Range, If-Range, Connection, X-Playback-Session-Id, whether a body follows),
+ * into one reused HttpRequest.
+ */
+public class HttpRequestParser {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+
+    private byte[] mBuffer = new byte[HttpRequest.MAX_REQUEST_HEADER_SIZE];
+    private ByteBuffer mByteBuffer = ByteBuffer.wrap(mBuffer);
+    private int mStart;
+    private int mLineStart;
+    private int mScanPos;
+    private int mLimit;
+    private boolean mHasRequestLine = false;
+    private HttpRequest mRequest = new HttpRequest();
+
+
+    /**
+     * Receive bytes from stream, blocks until some bytes arrive.
+     *
+     * @return count of bytes received, -1 at the end of stream.
+     */
+    public int fill(InputStream stream) throws IOException {
+        compact();
+        int count = stream.read(mBuffer, mLimit, mBuffer.length - mLimit);
+        if (count > 0) {
+            mLimit += count;
+        }
+
+        return count;
+    }
+
+    /**
+     * Receive bytes available in channel.
+     *
+     * @return count of bytes received, -1 at the end of stream.
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        compact();
+        mByteBuffer.limit(mBuffer.length);
+        mByteBuffer.position(mLimit);
+        int count = channel.read(mByteBuffer);
+        if (count > 0) {
+            mLimit += count;
+        }
+
+        return count;
+    }
+
+    /**
+     * Parse received bytes.
+     *
+     * @return the request once its header is complete, valid until the next
+     * parse(), null if more bytes are needed.
+     */
+    public HttpRequest parse() throws HttpRequest.HttpRequestException {
+        while (mScanPos < mLimit) {
+            if (mBuffer[mScanPos++] != '\n') {
+                continue;
+            }
+
+            int lineStart = mLineStart;
+            int lineEnd = mScanPos - 1;
+            if (lineEnd > lineStart && mBuffer[lineEnd - 1] == '\r') {
+                --lineEnd;
+            }
+
+            mLineStart = mScanPos;
+            if (!mHasRequestLine) {
+                if (lineEnd == lineStart) {
+                    // Tolerate empty lines between pipelined requests.
+                    mStart = mLineStart;
+                    continue;
+                }
+
+                mRequest.reset();
+                parseRequestLine(lineStart, lineEnd);
+                mHasRequestLine = true;
+            } else if (lineEnd == lineStart) {
+                mHasRequestLine = false;
+                mStart = mLineStart;
+                return mRequest;
+            } else {
+                parseHeaderLine(lineStart, lineEnd);
+            }
+        }
+
+        if (mLimit - mStart >= mBuffer.length) {
+            throw new HttpRequest.HttpRequestException(
+                    HttpResponse.StatusCode.BAD_REQUEST, "Request Header Too Large");
+        }
+
+        return null;
+    }
+
+    /**
+     * @return whether bytes of a next request were received but not parsed yet.
+     */
+    public boolean hasPendingBytes() {
+        return mLimit > mStart;
+    }
+
+    /**
+     * Move unparsed bytes to the head of the buffer.
+     */
+    private void compact() {
+        if (mStart == 0) {
+            return;
+        }
+
+        System.arraycopy(mBuffer, mStart, mBuffer, 0, mLimit - mStart);
+        mLimit -= mStart;
+        mScanPos -= mStart;
+        mLineStart -= mStart;
+        mStart = 0;
+    }
+
+    private void parseRequestLine(int start, int end) throws HttpRequest.HttpRequestException {
+        int methodEnd = indexOf(' ', start, end);
+        int uriStart = skipSpaces(methodEnd, end);
+        if (methodEnd <= start || uriStart >= end) {
+            throw new HttpRequest.HttpRequestException(
+                    HttpResponse.StatusCode.BAD_REQUEST, "Missing URI");
+        }
+
+        int uriEnd = indexOf(' ', uriStart, end);
+        int versionStart = skipSpaces(uriEnd, end);
+        int versionEnd = trimEnd(versionStart, end);
+
+        mRequest.mMethod = parseMethod(start, methodEnd);
+        mRequest.mUri = newString(uriStart, uriEnd);
+        if (versionStart >= versionEnd
+                || equalsIgnoreCase(versionStart, versionEnd, HttpRequest.HTTP_1_0)) {
+            mRequest.mVersion = HttpRequest.HTTP_1_0;
+        } else if (equalsIgnoreCase(versionStart, versionEnd, HttpRequest.HTTP_1_1)) {
+            mRequest.mVersion = HttpRequest.HTTP_1_1;
+        } else {
+            mRequest.mVersion = newString(versionStart, versionEnd);
+        }
+    }
+
+    private void parseHeaderLine(int start, int end) {
+        int colonPos = indexOf(':', start, end);
+        if (colonPos >= end) {
+            return;
+        }
+
+        int nameEnd = trimEnd(start, colonPos);
+        int valueStart = skipSpaces(colonPos + 1, end);
+        int valueEnd = trimEnd(valueStart, end);
+
+        if (equalsIgnoreCase(start, nameEnd, "range")) {
+            mRequest.mRange = newString(valueStart, valueEnd);
+        } else if (equalsIgnoreCase(start, nameEnd, "if-range")) {
+            mRequest.mIfRange = newString(valueStart, valueEnd);
+        } else if (equalsIgnoreCase(start, nameEnd, "connection")) {
+            parseConnection(valueStart, valueEnd);
+        } else if (equalsIgnoreCase(start, nameEnd, "x-playback-session-id")) {
+            mRequest.mPlaybackSessionId = newString(valueStart, valueEnd);
+        } else if (equalsIgnoreCase(start, nameEnd, "content-length")) {
+            mRequest.mHasBody |= !isZero(valueStart, valueEnd);
+        } else if (equalsIgnoreCase(start, nameEnd, "transfer-encoding")) {
+            mRequest.mHasBody = true;
+        }
+    }
+
+    /**
+     * @return whether bytes in [start, end) are all '0', as in "Content-Length: 0".
+     */
+    private boolean isZero(int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+
+        for (int i = start; i < end; ++i) {
+            if (mBuffer[i] != '0') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Connection is a comma separated list of options.
+     */
+    private void parseConnection(int start, int end) {
+        while (start < end) {
+            int tokenEnd = indexOf(',', start, end);
+            int tokenStart = skipSpaces(start, tokenEnd);
+            int tokenTrimmedEnd = trimEnd(tokenStart, tokenEnd);
+
+            if (equalsIgnoreCase(tokenStart, tokenTrimmedEnd, "close")) {
+                mRequest.mConnectionClose = true;
+            } else if (equalsIgnoreCase(tokenStart, tokenTrimmedEnd, "keep-alive")) {
+                mRequest.mConnectionKeepAlive = true;
+            }
+
+            start = tokenEnd + 1;
+        }
+    }
+
+    /**
+     * @return position of ch, or end if not found.
+     */
+    private int indexOf(char ch, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            if (mBuffer[i] == ch) {
+                return i;
+            }
+        }
+
+        return end;
+    }
+
+    private int skipSpaces(int start, int end) {
+        while (start < end && (mBuffer[start] == ' ' || mBuffer[start] == '\t')) {
+            ++start;
+        }
+
+        return start;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && (mBuffer[end - 1] == ' ' || mBuffer[end - 1] == '\t')) {
+            --end;
+        }
+
+        return end;
+    }
+
+    /**
+     * Known methods are shared constants, no String allocated per request.
+     */
+    private String parseMethod(int start, int end) {
+        if (equalsIgnoreCase(start, end, HttpRequest.METHOD_GET)) {
+            return HttpRequest.METHOD_GET;
+        }
+
+        if (equalsIgnoreCase(start, end, HttpRequest.METHOD_HEAD)) {
+            return HttpRequest.METHOD_HEAD;
+        }
+
+        if (equalsIgnoreCase(start, end, HttpRequest.METHOD_OPTIONS)) {
+            return HttpRequest.METHOD_OPTIONS;
+        }
+
+        return newString(start, end);
+    }
+
+    /**
+     * Compare bytes in [start, end) with an ASCII text, ignoring case.
+     */
+    private boolean equalsIgnoreCase(int start, int end, String text) {
+        if (end - start != text.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < text.length(); ++i) {
+            int ch = mBuffer[start + i];
+            if (ch >= 'A' && ch <= 'Z') {
+                ch += 'a' - 'A';
+            }
+
+            if (ch != Character.toLowerCase(text.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String newString(int start, int end) {
+        return new String(mBuffer, start, end - start, ISO_8859_1);
+    }
+}
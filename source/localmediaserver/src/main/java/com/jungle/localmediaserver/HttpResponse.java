@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import android.text.TextUtils;
+import android.util.SparseArray;
+import com.jungle.localmediaserver.log.MediaLog;
+import com.jungle.localmediaserver.provider.MediaDataProvider;
+import com.jungle.localmediaserver.stats.ServerStats;
+
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TimeZone;
+
+/*
+ * Http response for one request, encoded by HttpResponseWriter and sent by
+ * the session engines.
+ *
+ * 1> Full file response:
+ *      HTTP/1.1 200 OK
+ *      Content-Length: xxx
+ *      Content-Type: video/mp4
+ *
+ * 2> Partial file response:
+ *      HTTP/1.1 206 Partial Content
+ *      Content-Length: yyy
+ *      Content-Type: video/mp4
+ *      Content-Range: mmm-nnn/yyy
+ *
+ * 3> Multiple ranges response:
+ *      HTTP/1.1 206 Partial Content
+ *      Content-Type: multipart/byteranges; boundary=xxx
+ *      --xxx [Content-Range: bytes mmm-nnn/yyy] data ... --xxx--
+ *
+ * 4> Error response:
+ *      HTTP/1.1 4xx/5xx
+ *      Content-Type: text/plain
+ *      Content-Length: length of the error message
+ *
+ * 5> Stats response (GET /_stats, if enabled):
+ *      HTTP/1.1 200 OK
+ *      Content-Type: application/json
+ *
+ * HEAD gets the header GET would get, without the body, so players probing
+ * the length & type are answered from the provider's cached metadata. OPTIONS
+ * gets a 200 with the Allow header, other methods a 405.
+ */
+public class HttpResponse {
+
+    private static final String TAG = ServerHttpSession.TAG;
+
+
+    public static class StatusCode {
+        public static final int OK = 200;
+        public static final int PARTIAL_CONTENT = 206;
+        public static final int BAD_REQUEST = 400;
+        public static final int NOT_FOUND = 404;
+        public static final int METHOD_NOT_ALLOWED = 405;
+        public static final int RANGE_NOT_SATISFIABLE = 416;
+        public static final int INTERNAL_SERVER_ERROR = 500;
+        public static final int SERVICE_UNAVAILABLE = 503;
+    }
+
+
+    /**
+     * One range of the body. Parts of multipart/byteranges bodies are preceded
+     * by their part header.
+     */
+    public static class ByteRange {
+
+        private long mStart;
+        private long mLength;
+        private byte[] mPartHeader;
+
+        ByteRange(long start, long length) {
+            mStart = start;
+            mLength = length;
+        }
+
+        public long getStart() {
+            return mStart;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
+
+        public long getEnd() {
+            return mStart + mLength - 1;
+        }
+
+        /**
+         * @return boundary & headers of this part, null if not multipart.
+         */
+        public byte[] getPartHeader() {
+            return mPartHeader;
+        }
+
+        String formatContentRange(long contentLength) {
+            return String.format("bytes %d-%d/%d", mStart, getEnd(), contentLength);
+        }
+    }
+
+
+    private static final int MAX_RANGE_COUNT = 32;
+    private static final String MULTIPART_BOUNDARY_PREFIX = "LocalMediaServer_";
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    private static final String ALLOWED_METHODS = String.format("%s, %s, %s",
+            HttpRequest.METHOD_GET, HttpRequest.METHOD_HEAD, HttpRequest.METHOD_OPTIONS);
+
+    private static final Random sRandom = new Random();
+    private static final SparseArray<String> sStatusMap = new SparseArray<>();
+
+    static {
+        sStatusMap.put(StatusCode.OK, "OK");
+        sStatusMap.put(StatusCode.PARTIAL_CONTENT, "Partial Content");
+        sStatusMap.put(StatusCode.BAD_REQUEST, "Bad Request");
+        sStatusMap.put(StatusCode.NOT_FOUND, "Not Found");
+        sStatusMap.put(StatusCode.METHOD_NOT_ALLOWED, "Method Not Allowed");
+        sStatusMap.put(StatusCode.RANGE_NOT_SATISFIABLE, "Range not satisfiable");
+        sStatusMap.put(StatusCode.INTERNAL_SERVER_ERROR, "Internal Server Error");
+        sStatusMap.put(StatusCode.SERVICE_UNAVAILABLE, "Service Unavailable");
+    }
+
+
+    private int mStatusCode;
+    private MediaDataProvider mProvider;
+    private Properties mExtraHeader;
+    private String mErrorMsg;
+    private byte[] mBody;
+    private String mBodyContentType;
+    private List<ByteRange> mRanges;
+    private String mBoundary;
+    private long mContentLength;
+    private long mBodyLength;
+    private boolean mKeepAlive;
+    private boolean mHasBody = true;
+
+
+    private HttpResponse(int statusCode, MediaDataProvider provider,
+            Properties extraHeader, String errorMsg, List<ByteRange> ranges) {
+
+        mStatusCode = statusCode;
+        mProvider = provider;
+        mExtraHeader = extraHeader;
+        mErrorMsg = errorMsg;
+        mRanges = ranges;
+    }
+
+    public static HttpResponse create(HttpRequest request, MediaRegistry registry) {
+        return create(request, registry, null);
+    }
+
+    /**
+     * @param stats served on "GET /_stats", null to disable the endpoint.
+     */
+    public static HttpResponse create(
+            HttpRequest request, MediaRegistry registry, ServerStats stats) {
+
+        String method = request.getMethod();
+        if (HttpRequest.METHOD_OPTIONS.equals(method)) {
+            Properties header = new Properties();
+            header.put("Allow", ALLOWED_METHODS);
+            return new HttpResponse(StatusCode.OK, null, header, null,
+                    Collections.<ByteRange>emptyList());
+        }
+
+        if (!HttpRequest.METHOD_GET.equals(method) && !HttpRequest.METHOD_HEAD.equals(method)) {
+            Properties header = new Properties();
+            header.put("Allow", ALLOWED_METHODS);
+            return error(StatusCode.METHOD_NOT_ALLOWED, header, String.format(
+                    "Method Not Allowed! [%s]", method));
+        }
+
+        HttpResponse response = route(request, registry, stats);
+        response.mHasBody = !HttpRequest.METHOD_HEAD.equals(method);
+        return response;
+    }
+
+    private static HttpResponse route(
+            HttpRequest request, MediaRegistry registry, ServerStats stats) {
+
+        String path = request.getPath();
+        if (stats != null && ServerStats.ENDPOINT_PATH.equals(path)) {
+            return content(CONTENT_TYPE_JSON, getBytes(stats.toJson()));
+        }
+
+        MediaDataProvider provider = registry.getProvider(path);
+        if (provider == null) {
+            return error(StatusCode.NOT_FOUND, String.format(
+                    "Media Not Found! [%s]", request.getUri()));
+        }
+
+        return create(request, provider);
+    }
+
+    /**
+     * Ranges follow RFC 7233: "a-b", open "a-" and suffix "-n" ranges, several ranges
+     * as multipart/byteranges, and If-Range. Invalid Range headers are ignored.
+     */
+    public static HttpResponse create(HttpRequest request, MediaDataProvider provider) {
+        final long contentLength = provider.getContentLength();
+
+        String range = request.getRange();
+        String ifRange = request.getIfRange();
+        if (range != null && ifRange != null
+                && !ifRange.equalsIgnoreCase(provider.getETag())
+                && !ifRange.equalsIgnoreCase(formatDate(provider.getLastModified()))) {
+            range = null;
+        }
+
+        ArrayList<ByteRange> ranges = range != null ? parseRanges(range, contentLength) : null;
+        if (ranges != null && ranges.isEmpty()) {
+            Properties header = new Properties();
+            header.put("Content-Range", String.format("bytes */%d", contentLength));
+            return error(StatusCode.RANGE_NOT_SATISFIABLE, header, String.format(
+                    "Range Error[req = %s]! contentLength = %d.", range, contentLength));
+        }
+
+        int statusCode = StatusCode.PARTIAL_CONTENT;
+        String boundary = null;
+        long sendLength = 0;
+        if (ranges == null) {
+            statusCode = StatusCode.OK;
+            ranges = new ArrayList<>();
+            ranges.add(new ByteRange(0, contentLength));
+            sendLength = contentLength;
+        } else if (ranges.size() == 1) {
+            sendLength = ranges.get(0).getLength();
+        } else {
+            boundary = MULTIPART_BOUNDARY_PREFIX + Long.toHexString(sRandom.nextLong());
+            for (ByteRange byteRange : ranges) {
+                byteRange.mPartHeader = getBytes(String.format(
+                        "\r\n--%s\r\nContent-Type: %s\r\nContent-Range: %s\r\n\r\n",
+                        boundary, provider.getContentType(),
+                        byteRange.formatContentRange(contentLength)));
+                sendLength += byteRange.mPartHeader.length + byteRange.getLength();
+            }
+
+            sendLength += getBytes(formatMultipartTrailer(boundary)).length;
+        }
+
+        if (MediaLog.isLoggable(MediaLog.DEBUG)) {
+            MediaLog.d(TAG, "Video Request Range[req = %s]: %d range(s), [length = %d].",
+                    String.valueOf(range), ranges.size(), sendLength);
+        }
+
+        HttpResponse response = new HttpResponse(
+                statusCode, provider, null, null, ranges);
+        response.mBoundary = boundary;
+        response.mContentLength = contentLength;
+        response.mBodyLength = sendLength;
+        return response;
+    }
+
+    /**
+     * @return satisfiable ranges (empty if none), null if the Range header is
+     * invalid and should be ignored.
+     */
+    private static ArrayList<ByteRange> parseRanges(String range, long contentLength) {
+        final String bytesUnit = "bytes=";
+        if (!range.regionMatches(true, 0, bytesUnit, 0, bytesUnit.length())) {
+            return null;
+        }
+
+        String[] specs = range.substring(bytesUnit.length()).split(",");
+        if (specs.length > MAX_RANGE_COUNT) {
+            return null;
+        }
+
+        ArrayList<ByteRange> ranges = new ArrayList<>();
+        int specCount = 0;
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (TextUtils.isEmpty(spec)) {
+                continue;
+            }
+
+            int separatePos = spec.indexOf('-');
+            if (separatePos < 0) {
+                return null;
+            }
+
+            ++specCount;
+            long start;
+            long end;
+            try {
+                String from = spec.substring(0, separatePos).trim();
+                String to = spec.substring(separatePos + 1).trim();
+                if (TextUtils.isEmpty(from)) {
+                    // Suffix range, the last n bytes.
+                    long suffixLength = Long.parseLong(to);
+                    if (suffixLength < 0) {
+                        return null;
+                    }
+
+                    start = Math.max(0, contentLength - suffixLength);
+                    end = suffixLength > 0 ? contentLength - 1 : -1;
+                } else {
+                    start = Long.parseLong(from);
+                    end = TextUtils.isEmpty(to) ? Long.MAX_VALUE : Long.parseLong(to);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+
+                    end = Math.min(end, contentLength - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (start < contentLength && end >= start) {
+                ranges.add(new ByteRange(start, end - start + 1));
+            }
+        }
+
+        return specCount > 0 ? coalesceRanges(ranges) : null;
+    }
+
+    /**
+     * Merge overlapping & adjacent ranges, so no byte is sent twice.
+     * Ranges keep the requested order if nothing is merged.
+     */
+    private static ArrayList<ByteRange> coalesceRanges(ArrayList<ByteRange> ranges) {
+        if (ranges.size() <= 1) {
+            return ranges;
+        }
+
+        ArrayList<ByteRange> sorted = new ArrayList<>(ranges);
+        Collections.sort(sorted, new Comparator<ByteRange>() {
+            @Override
+            public int compare(ByteRange lhs, ByteRange rhs) {
+                return lhs.mStart < rhs.mStart ? -1 : (lhs.mStart == rhs.mStart ? 0 : 1);
+            }
+        });
+
+        ArrayList<ByteRange> merged = new ArrayList<>();
+        ByteRange current = sorted.get(0);
+        for (int i = 1; i < sorted.size(); ++i) {
+            ByteRange next = sorted.get(i);
+            if (next.mStart <= current.getEnd() + 1) {
+                current = new ByteRange(current.mStart,
+                        Math.max(current.getEnd(), next.getEnd()) - current.mStart + 1);
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+
+        merged.add(current);
+        return merged.size() < ranges.size() ? merged : ranges;
+    }
+
+    /**
+     * 200 response with a body generated by the server, not by a provider.
+     */
+    private static HttpResponse content(String contentType, byte[] body) {
+        HttpResponse response = new HttpResponse(StatusCode.OK, null, null, null,
+                Collections.<ByteRange>emptyList());
+        response.mBody = body;
+        response.mBodyContentType = contentType;
+        response.mBodyLength = body.length;
+        return response;
+    }
+
+    public static HttpResponse error(int statusCode, String errorMsg) {
+        return error(statusCode, null, errorMsg);
+    }
+
+    private static HttpResponse error(int statusCode, Properties header, String errorMsg) {
+        if (MediaLog.isLoggable(MediaLog.INFO)) {
+            MediaLog.i(TAG, "SendError: statusCode = %d, info = %s, errorMsg = %s",
+                    statusCode, String.valueOf(sStatusMap.get(statusCode)), errorMsg);
+        }
+
+        HttpResponse response = new HttpResponse(statusCode, null, header, errorMsg,
+                Collections.<ByteRange>emptyList());
+        response.mBody = response.encodeErrorBody();
+        response.mBodyLength = response.mBody.length;
+        return response;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    public MediaDataProvider getProvider() {
+        return mProvider;
+    }
+
+    public boolean isError() {
+        return !TextUtils.isEmpty(mErrorMsg)
+                || (mStatusCode != StatusCode.OK && mStatusCode != StatusCode.PARTIAL_CONTENT);
+    }
+
+    /**
+     * Ranges of the body, in sending order. One range for 200 & single range 206
+     * responses, none for errors.
+     */
+    public List<ByteRange> getRanges() {
+        return mRanges;
+    }
+
+    public boolean isMultipart() {
+        return mBoundary != null;
+    }
+
+    /**
+     * @return false if only the header is sent, e.g. for HEAD requests.
+     */
+    public boolean hasBody() {
+        return mHasBody;
+    }
+
+    /**
+     * Closing delimiter of multipart/byteranges bodies, null for other responses.
+     */
+    public byte[] encodeMultipartTrailer() {
+        return mBoundary != null ? getBytes(formatMultipartTrailer(mBoundary)) : null;
+    }
+
+    private static String formatMultipartTrailer(String boundary) {
+        return String.format("\r\n--%s--\r\n", boundary);
+    }
+
+    public boolean isKeepAlive() {
+        return mKeepAlive;
+    }
+
+    /**
+     * Error responses carry their length, so errors of requests read whole
+     * (404, 405, 416) keep the connection. Sessions pass false for requests
+     * that failed to parse.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+    }
+
+    /**
+     * Headers of responses without a provider besides the common ones, may be null.
+     */
+    Properties getExtraHeader() {
+        return mExtraHeader;
+    }
+
+    String getBoundary() {
+        return mBoundary;
+    }
+
+    /**
+     * Length of the whole content, for Content-Range.
+     */
+    long getContentLength() {
+        return mContentLength;
+    }
+
+    /**
+     * Length of the body, for Content-Length.
+     */
+    long getBodyLength() {
+        return mBodyLength;
+    }
+
+    static String getStatusInfo(int statusCode) {
+        String statusInfo = sStatusMap.get(statusCode);
+        return statusInfo != null ? statusInfo : "";
+    }
+
+    public byte[] encodeErrorBody() {
+        return mErrorMsg != null ? getBytes(mErrorMsg) : new byte[0];
+    }
+
+    /**
+     * Body of responses without a provider: the error message, or the content
+     * generated by the server.
+     */
+    public byte[] encodeBody() {
+        return mBody != null ? mBody : encodeErrorBody();
+    }
+
+    /**
+     * Content-Type of the body generated by the server, null for other responses.
+     */
+    String getBodyContentType() {
+        return mBodyContentType;
+    }
+
+    static String formatDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    private static byte[] getBytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return text.getBytes();
+        }
+    }
+}
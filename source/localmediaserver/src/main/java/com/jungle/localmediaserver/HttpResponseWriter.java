@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import android.util.SparseArray;
+import com.jungle.localmediaserver.provider.MediaDataProvider;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.Properties;
+
+/*
+ * Encode response headers of one connection into a reused buffer.
+ *
+ *      HTTP/1.1 206 Partial Content\r\n          <- pre-encoded status line
+ *      Accept-Ranges: bytes\r\n                  <- pre-encoded
+ *      Connection: keep-alive\r\n ...            <- pre-encoded
+ *      Content-Type / ETag / Last-Modified       <- encoded once per provider
+ *      Content-Length: [yyy]\r\n                 <- numbers written in place
+ *      Content-Range: bytes [mmm]-[nnn]/[zzz]\r\n
+ *      \r\n
+ */
+class HttpResponseWriter {
+
+    private static final int INITIAL_BUFFER_SIZE = 512;
+
+    private static final byte[] CRLF = getBytes("\r\n");
+    private static final byte[] ACCEPT_RANGES = getBytes("Accept-Ranges: bytes\r\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = getBytes(String.format(
+            "Connection: keep-alive\r\nKeep-Alive: timeout=%d, max=%d\r\n",
+            ServerHttpSession.KEEP_ALIVE_TIMEOUT / 1000,
+            ServerHttpSession.MAX_KEEP_ALIVE_REQUESTS));
+    private static final byte[] CONNECTION_CLOSE = getBytes("Connection: close\r\n");
+    private static final byte[] CONTENT_TYPE_TEXT = getBytes("Content-Type: text/plain\r\n");
+    private static final byte[] CONTENT_TYPE_MULTIPART =
+            getBytes("Content-Type: multipart/byteranges; boundary=");
+    private static final byte[] CONTENT_LENGTH = getBytes("Content-Length: ");
+    private static final byte[] CONTENT_RANGE = getBytes("Content-Range: bytes ");
+
+    private static final int[] STATUS_CODES = {
+            HttpResponse.StatusCode.OK,
+            HttpResponse.StatusCode.PARTIAL_CONTENT,
+            HttpResponse.StatusCode.BAD_REQUEST,
+            HttpResponse.StatusCode.NOT_FOUND,
+            HttpResponse.StatusCode.METHOD_NOT_ALLOWED,
+            HttpResponse.StatusCode.RANGE_NOT_SATISFIABLE,
+            HttpResponse.StatusCode.INTERNAL_SERVER_ERROR,
+            HttpResponse.StatusCode.SERVICE_UNAVAILABLE,
+    };
+
+    /**
+     * Read-only after class initialization, so shared by all connections.
+     */
+    private static final SparseArray<byte[]> sStatusLines = new SparseArray<>();
+
+    static {
+        for (int statusCode : STATUS_CODES) {
+            sStatusLines.put(statusCode, encodeStatusLine(statusCode));
+        }
+    }
+
+
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private ByteBuffer mByteBuffer = ByteBuffer.wrap(mBuffer);
+    private int mLength;
+
+    private MediaDataProvider mProvider;
+    private int mProviderMetadataVersion;
+    private byte[] mProviderHeader;
+
+
+    /**
+     * @return the encoded header, valid until the next encode().
+     */
+    ByteBuffer encode(HttpResponse response) {
+        mLength = 0;
+
+        int statusCode = response.getStatusCode();
+        byte[] statusLine = sStatusLines.get(statusCode);
+        write(statusLine != null ? statusLine : encodeStatusLine(statusCode));
+
+        write(ACCEPT_RANGES);
+        write(response.isKeepAlive() ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+
+        if (response.isError()) {
+            write(CONTENT_TYPE_TEXT);
+            writeExtraHeader(response.getExtraHeader());
+            writeContentHeader(response);
+        } else if (response.getProvider() == null) {
+            String contentType = response.getBodyContentType();
+            if (contentType != null) {
+                write(getBytes(String.format("Content-Type: %s\r\n", contentType)));
+            }
+
+            writeExtraHeader(response.getExtraHeader());
+            writeContentHeader(response);
+        } else {
+            writeProviderHeader(response);
+            writeContentHeader(response);
+        }
+
+        write(CRLF);
+
+        mByteBuffer.clear();
+        mByteBuffer.limit(mLength);
+        return mByteBuffer;
+    }
+
+    private void writeContentHeader(HttpResponse response) {
+        write(CONTENT_LENGTH);
+        writeNumber(response.getBodyLength());
+        write(CRLF);
+
+        if (response.isMultipart()) {
+            write(CONTENT_TYPE_MULTIPART);
+            write(getBytes(response.getBoundary()));
+            write(CRLF);
+        } else if (response.getStatusCode() == HttpResponse.StatusCode.PARTIAL_CONTENT) {
+            HttpResponse.ByteRange range = response.getRanges().get(0);
+            write(CONTENT_RANGE);
+            writeNumber(range.getStart());
+            writeByte('-');
+            writeNumber(range.getEnd());
+            writeByte('/');
+            writeNumber(response.getContentLength());
+            write(CRLF);
+        }
+    }
+
+    /**
+     * Content-Type (unless multipart), ETag & Last-Modified, re-encoded only
+     * when the provider or its metadata version changes.
+     */
+    private void writeProviderHeader(HttpResponse response) {
+        MediaDataProvider provider = response.getProvider();
+        int metadataVersion = provider.getMetadataVersion();
+        if (provider != mProvider || metadataVersion != mProviderMetadataVersion) {
+            mProvider = provider;
+            mProviderMetadataVersion = metadataVersion;
+            mProviderHeader = getBytes(String.format(
+                    "Content-Type: %s\r\nETag: %s\r\nLast-Modified: %s\r\n",
+                    provider.getContentType(), provider.getETag(),
+                    HttpResponse.formatDate(provider.getLastModified())));
+        }
+
+        if (response.isMultipart()) {
+            // Content-Type is the multipart one, skip the provider's first line.
+            int skip = 0;
+            while (mProviderHeader[skip] != '\n') {
+                ++skip;
+            }
+
+            ++skip;
+            write(mProviderHeader, skip, mProviderHeader.length - skip);
+        } else {
+            write(mProviderHeader);
+        }
+    }
+
+    private void writeExtraHeader(Properties header) {
+        if (header == null) {
+            return;
+        }
+
+        Enumeration<?> e = header.keys();
+        while (e.hasMoreElements()) {
+            String key = (String) e.nextElement();
+            write(getBytes(String.format("%s: %s\r\n", key, header.getProperty(key))));
+        }
+    }
+
+    private void writeNumber(long number) {
+        if (number < 0) {
+            writeByte('-');
+            number = -number;
+        }
+
+        int digitCount = 1;
+        for (long n = number / 10; n > 0; n /= 10) {
+            ++digitCount;
+        }
+
+        ensureCapacity(digitCount);
+        for (int i = mLength + digitCount - 1; i >= mLength; --i) {
+            mBuffer[i] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+
+        mLength += digitCount;
+    }
+
+    private void writeByte(char ch) {
+        ensureCapacity(1);
+        mBuffer[mLength++] = (byte) ch;
+    }
+
+    private void write(byte[] data) {
+        write(data, 0, data.length);
+    }
+
+    private void write(byte[] data, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(data, offset, mBuffer, mLength, count);
+        mLength += count;
+    }
+
+    private void ensureCapacity(int count) {
+        if (mLength + count <= mBuffer.length) {
+            return;
+        }
+
+        byte[] buffer = new byte[Math.max(mBuffer.length * 2, mLength + count)];
+        System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+        mBuffer = buffer;
+        mByteBuffer = ByteBuffer.wrap(mBuffer);
+    }
+
+    private static byte[] encodeStatusLine(int statusCode) {
+        return getBytes(String.format("HTTP/1.1 %d %s\r\n",
+                statusCode, HttpResponse.getStatusInfo(statusCode)));
+    }
+
+    private static byte[] getBytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return text.getBytes();
+        }
+    }
+}
@@ -9,16 +9,18 @@
 package com.jungle.localmediaserver;
 
 import android.text.TextUtils;
-import android.util.Log;
+import com.jungle.localmediaserver.log.MediaLog;
+import com.jungle.localmediaserver.provider.GrowingFileMediaProvider;
 import com.jungle.localmediaserver.provider.MediaDataProvider;
 import com.jungle.localmediaserver.provider.RawFileMediaProvider;
+import com.jungle.localmediaserver.stats.ServerStats;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.URLEncoder;
+import java.nio.channels.ServerSocketChannel;
 
 /*
  * Local-Media-Server for streaming-video.
@@ -29,89 +31,168 @@ import java.net.URLEncoder;
  *      |- request_2: GET http://localhost:port/file_path [Range: bytes=xxx-yyy]
  *      |- request_3: ...
  *
+ * Several files can be served by one server, each registered under its own path:
+ *      |- GET http://localhost:port/file_path_1  ->  provider_1
+ *      |- GET http://localhost:port/file_path_2  ->  provider_2
+ *
+ * Files still being written are served with prepare(path, GrowingFileMediaProvider).
+ * MP4s with the moov atom at the end are served faststart by wrapping their
+ * provider in a FastStartMediaProvider.
+ *
+ * Sessions, requests & provider reads are measured in getStats().
  */
 public class LocalMediaServer {
 
     private static final String TAG = "LocalMediaServer";
 
-    private Thread mWorkThread;
-    private ServerSocket mServerSocket;
-    private MediaDataProvider mVideoProvider;
-    private boolean mIsWorking = false;
+    private ServerSocketChannel mServerChannel;
+    private SessionEngine mSessionEngine;
+    private MediaRegistry mRegistry = new MediaRegistry();
+    private ServerConfig mConfig = new ServerConfig();
+    private ServerStats mStats = new ServerStats();
 
 
     public LocalMediaServer() {
     }
 
+    /**
+     * Open the server socket if needed and register filePath.
+     *
+     * @return url of the file, null if failed.
+     */
     public String prepare(String filePath) {
         File file = new File(filePath);
         if (!file.exists() || file.length() <= 0) {
             return null;
         }
 
-        try {
-            mServerSocket = new ServerSocket(0);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (!openServerChannel()) {
+            return null;
+        }
+
+        return register(filePath);
+    }
+
+    /**
+     * Open the server socket if needed and register provider under path, the
+     * file may still be empty, e.g. for a {@link GrowingFileMediaProvider}.
+     *
+     * @return url of the path, null if failed.
+     */
+    public String prepare(String path, MediaDataProvider provider) {
+        if (!openServerChannel()) {
+            return null;
         }
 
-        if (mServerSocket == null) {
+        return register(path, provider);
+    }
+
+    private boolean openServerChannel() {
+        if (mServerChannel == null) {
+            try {
+                // Open through a channel, so accepted sockets own a SocketChannel
+                // which providers can use for zero-copy transfer.
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.socket().bind(new InetSocketAddress(0));
+                mServerChannel = serverChannel;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return mServerChannel != null;
+    }
+
+    /**
+     * Register another file on a prepared server, can be called while running.
+     *
+     * @return url of the file, null if failed.
+     */
+    public String register(String filePath) {
+        File file = new File(filePath);
+        if (!file.exists() || file.length() <= 0) {
             return null;
         }
 
-        String url = getFileUrl(filePath);
+        return register(filePath, createMediaProvider(filePath));
+    }
+
+    /**
+     * Register a provider under path, a provider already registered under
+     * the same path is replaced and cleaned.
+     *
+     * @return url of the path, null if failed.
+     */
+    public String register(String path, MediaDataProvider provider) {
+        String url = getFileUrl(path);
         if (TextUtils.isEmpty(url)) {
             return null;
         }
 
-        mVideoProvider = createMediaProvider(filePath);
+        provider.setStats(mStats);
+
+        // Detected now, so probe requests are answered without reading the file.
+        provider.getContentType();
+        mRegistry.register(path, provider);
         return url;
     }
 
+    public void unregister(String path) {
+        mRegistry.unregister(path);
+    }
+
+    /**
+     * Tuning of the server, changes apply from the next start().
+     */
+    public ServerConfig getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Metrics of the server, see {@link ServerStats}. Kept across stop() & start().
+     */
+    public ServerStats getStats() {
+        return mStats;
+    }
+
     protected MediaDataProvider createMediaProvider(String filePath) {
         return new RawFileMediaProvider(filePath);
     }
 
+    /**
+     * Override to run sessions on another engine, e.g. {@link SelectorEngine}.
+     */
+    protected SessionEngine createSessionEngine() {
+        return new WorkerPoolEngine();
+    }
+
     public boolean start() {
-        if (mVideoProvider == null) {
+        if (mServerChannel == null || mRegistry.isEmpty()) {
             return false;
         }
 
-        mWorkThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (mIsWorking) {
-                    try {
-                        Socket socket = mServerSocket.accept();
-                        if (!mIsWorking || socket == null) {
-                            break;
-                        }
-
-                        Log.e(TAG, "Recv New Video Request!");
-                        ServerHttpSession session = new ServerHttpSession(
-                                socket, mVideoProvider);
-                        session.start();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        });
+        if (mSessionEngine != null) {
+            return true;
+        }
 
-        mIsWorking = true;
-        mWorkThread.setName(LocalMediaServer.class.getSimpleName());
-        mWorkThread.setDaemon(true);
-        mWorkThread.start();
+        mSessionEngine = createSessionEngine();
+        try {
+            mSessionEngine.start(mServerChannel, mRegistry, mConfig, mStats);
+        } catch (IOException e) {
+            MediaLog.e(TAG, "Start Session Engine FAILED!", e);
+            mSessionEngine = null;
+            return false;
+        }
 
         return true;
     }
 
-    private String getFileUrl(String filePath) {
-        if (mServerSocket == null || TextUtils.isEmpty(filePath)) {
+    public String getFileUrl(String filePath) {
+        if (mServerChannel == null || TextUtils.isEmpty(filePath)) {
             return null;
         }
 
-        int port = mServerSocket.getLocalPort();
+        int port = mServerChannel.socket().getLocalPort();
         try {
             return "http://localhost:" + port
                     + "/" + URLEncoder.encode(filePath, "UTF-8");
@@ -123,22 +204,15 @@ public class LocalMediaServer {
     }
 
     public void stop() {
-        mIsWorking = false;
+        mRegistry.clear();
 
-        if (mVideoProvider != null) {
-            mVideoProvider.clean();
+        if (mSessionEngine != null) {
+            mSessionEngine.stop();
+            mSessionEngine = null;
+        } else {
+            FileUtils.closeStream(mServerChannel);
         }
 
-        try {
-            if (mServerSocket != null) {
-                mServerSocket.close();
-            }
-
-            if (mWorkThread != null) {
-                mWorkThread.join();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        mServerChannel = null;
     }
 }
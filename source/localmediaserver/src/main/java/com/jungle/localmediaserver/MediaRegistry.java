@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.provider.MediaDataProvider;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Maps request paths to media providers, so one server serves many files.
+ *
+ *      http://localhost:port/encoded_path_1  ->  provider_1
+ *      http://localhost:port/encoded_path_2  ->  provider_2
+ *
+ * Paths are kept decoded, providers are cleaned when unregistered.
+ */
+public class MediaRegistry {
+
+    private ConcurrentHashMap<String, MediaDataProvider> mProviders =
+            new ConcurrentHashMap<>();
+
+
+    public void register(String path, MediaDataProvider provider) {
+        MediaDataProvider prevProvider = mProviders.put(path, provider);
+        if (prevProvider != null && prevProvider != provider) {
+            prevProvider.clean();
+        }
+    }
+
+    public void unregister(String path) {
+        MediaDataProvider provider = mProviders.remove(path);
+        if (provider != null) {
+            provider.clean();
+        }
+    }
+
+    public MediaDataProvider getProvider(String path) {
+        return path != null ? mProviders.get(path) : null;
+    }
+
+    public boolean isEmpty() {
+        return mProviders.isEmpty();
+    }
+
+    public void clear() {
+        for (String path : mProviders.keySet()) {
+            unregister(path);
+        }
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.log.MediaLog;
+import com.jungle.localmediaserver.provider.MediaDataProvider;
+import com.jungle.localmediaserver.provider.MediaTransfer;
+import com.jungle.localmediaserver.stats.RequestTrace;
+import com.jungle.localmediaserver.stats.ServerStats;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/*
+ * Non-blocking Http session driven by SelectorEngine.
+ *
+ *      READ:  collect bytes until a whole request header arrives.
+ *      WRITE: write response header together with the first body chunk in one
+ *             gathering write, then body chunks as the socket accepts them,
+ *             range by range (part headers & trailer of multipart bodies between).
+ *      -> back to READ for the next (pipelined) request on keep-alive connections.
+ *
+ * Shaped bodies (see BandwidthScheduler) are sent in quanta. While the scheduler
+ * holds a quantum back, the session is paused with no write interest, and the
+ * engine resumes it at getResumeTime(). Bodies of files still being written
+ * (see GrowingFileMediaProvider) wait the same way until the writer wakes the
+ * session up through the engine.
+ *
+ * While a body is sent the session keeps reading, so a client resetting the
+ * connection cancels the body at once, as does a newer request of the same
+ * player for the same file (see TransferTracker). End of stream may be a
+ * half-close: reading stops, the response in flight is still sent, and the
+ * connection is closed after it (after the requests already received).
+ */
+class NioHttpSession {
+
+    private static final String TAG = ServerHttpSession.TAG;
+
+
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+    private SelectorEngine mEngine;
+    private MediaRegistry mRegistry;
+    private ServerConfig mConfig;
+    private ServerStats mStats;
+    private RequestTrace mTrace = new RequestTrace();
+    private BandwidthScheduler.Flow mFlow;
+    private TransferTracker mTracker;
+    private MediaTransfer mTransfer;
+    private String mTransferKey;
+    private MediaDataProvider mVideoProvider;
+    private HttpRequestParser mParser = new HttpRequestParser();
+    private HttpResponseWriter mResponseWriter = new HttpResponseWriter();
+    private ByteBuffer mHeaderBuffer;
+    private ByteBuffer mBodyBuffer;
+    private ByteBuffer[] mGatherBuffers = new ByteBuffer[2];
+    private byte[] mChunk;
+    private HttpResponse mResponse;
+    private int mRangeIndex;
+    private boolean mTrailerSent;
+    private long mPosition;
+    private long mRemaining;
+    private int mRequestCount;
+    private long mLastActiveTime;
+    private long mResumeTime;
+    private boolean mIsReadStalled = false;
+    private boolean mIsWaitingData = false;
+    private boolean mIsInputShutdown = false;
+    private boolean mIsClosed = false;
+
+
+    private MediaDataProvider.DataListener mDataListener =
+            new MediaDataProvider.DataListener() {
+                @Override
+                public void onDataAvailable() {
+                    mEngine.wakeUp(NioHttpSession.this);
+                }
+            };
+
+
+    NioHttpSession(SocketChannel channel, SelectionKey key, SelectorEngine engine,
+            MediaRegistry registry, ServerConfig config, ServerStats stats,
+            BandwidthScheduler scheduler, TransferTracker tracker) {
+
+        mChannel = channel;
+        mKey = key;
+        mEngine = engine;
+        mRegistry = registry;
+        mConfig = config;
+        mStats = stats;
+        mFlow = scheduler.openFlow();
+        mTracker = tracker;
+        mLastActiveTime = System.currentTimeMillis();
+        mStats.onSessionStarted();
+    }
+
+    boolean isIdleTimeout(long now) {
+        // Parked on a growing file, woken by its writer, or failed by clean().
+        if (mResumeTime != 0 || mIsWaitingData) {
+            return false;
+        }
+
+        int timeout = ServerHttpSession.REQUEST_TIMEOUT;
+        if (mResponse == null && mRequestCount > 0) {
+            timeout = ServerHttpSession.KEEP_ALIVE_TIMEOUT;
+        }
+
+        return now - mLastActiveTime > timeout;
+    }
+
+    void onReadable() throws IOException {
+        int count = mParser.fill(mChannel);
+        if (count < 0) {
+            if (mResponse == null) {
+                close();
+                return;
+            }
+
+            // Half-closed, the client may still read the response.
+            mIsInputShutdown = true;
+            mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+
+        if (count == 0 && mResponse != null) {
+            // Parser buffer full of pipelined requests, read again after this response.
+            mIsReadStalled = true;
+            mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+
+        mLastActiveTime = System.currentTimeMillis();
+        handleRequest();
+    }
+
+    private void handleRequest() throws IOException {
+        if (mResponse != null) {
+            return;
+        }
+
+        HttpRequest request = null;
+        HttpResponse response;
+        try {
+            // Bytes of pipelined requests are kept by the parser.
+            request = mParser.parse();
+            if (request == null) {
+                return;
+            }
+
+            mTrace.begin(request.getUri());
+            response = HttpResponse.create(request, mRegistry,
+                    mConfig.isStatsEndpointEnabled() ? mStats : null);
+        } catch (HttpRequest.HttpRequestException e) {
+            mTrace.begin(null);
+            response = HttpResponse.error(e.getStatusCode(), e.getMessage());
+        }
+
+        ++mRequestCount;
+        response.setKeepAlive(request != null && request.isKeepAlive()
+                && mRequestCount < ServerHttpSession.MAX_KEEP_ALIVE_REQUESTS);
+        startResponse(response, request);
+    }
+
+    /**
+     * @param request null for errors of unparsed requests.
+     */
+    private void startResponse(HttpResponse response, HttpRequest request) throws IOException {
+        mFlow.begin(request != null
+                ? BandwidthScheduler.getPriority(request)
+                : BandwidthScheduler.Priority.FOREGROUND);
+        mResponse = response;
+        mVideoProvider = response.hasBody() ? response.getProvider() : null;
+        if (mVideoProvider != null && request != null) {
+            mTransfer = new MediaTransfer() {
+                @Override
+                public void cancel() {
+                    super.cancel();
+                    // Cancelled on the selector thread, reset without waiting for the socket.
+                    try {
+                        mChannel.socket().setSoLinger(true, 0);
+                    } catch (SocketException e) {
+                        e.printStackTrace();
+                    }
+
+                    close();
+                }
+            };
+
+            mTransferKey = mTracker.begin(request, mTransfer);
+        }
+
+        mHeaderBuffer = mResponseWriter.encode(response);
+        mBodyBuffer = null;
+        mRangeIndex = -1;
+        mTrailerSent = false;
+        mRemaining = 0;
+
+        List<HttpResponse.ByteRange> ranges = response.getRanges();
+        mTrace.onResponse(response.getStatusCode(),
+                !ranges.isEmpty() ? ranges.get(0).getStart() : 0,
+                response.hasBody() ? response.getBodyLength() : 0);
+
+        if (mVideoProvider == null && response.hasBody()) {
+            mBodyBuffer = ByteBuffer.wrap(response.encodeBody());
+        } else {
+            nextRange();
+        }
+
+        mKey.interestOps(getWriteInterestOps());
+        onWritable();
+    }
+
+    /**
+     * Interest ops while a response is sent, reading to see the client leave.
+     */
+    private int getWriteInterestOps() {
+        return SelectionKey.OP_WRITE | getReadInterestOps();
+    }
+
+    private int getReadInterestOps() {
+        return mIsReadStalled || mIsInputShutdown ? 0 : SelectionKey.OP_READ;
+    }
+
+    void onWritable() throws IOException {
+        mLastActiveTime = System.currentTimeMillis();
+
+        if (mHeaderBuffer.hasRemaining()) {
+            writeHeader();
+            if (mHeaderBuffer.position() > 0) {
+                mTrace.onFirstByte(System.nanoTime());
+            }
+
+            if (mHeaderBuffer.hasRemaining()) {
+                return;
+            }
+        }
+
+        while (true) {
+            if (mBodyBuffer != null && mBodyBuffer.hasRemaining()) {
+                mTrace.onBytesSent(mChannel.write(mBodyBuffer));
+                if (mBodyBuffer.hasRemaining()) {
+                    return;
+                }
+            }
+
+            if (mRemaining <= 0) {
+                if (nextRange()) {
+                    continue;
+                }
+
+                break;
+            }
+
+            long available = mVideoProvider.getAvailableLength() - mPosition;
+            if (available <= 0) {
+                if (waitForData()) {
+                    return;
+                }
+
+                available = mVideoProvider.getAvailableLength() - mPosition;
+                if (available <= 0) {
+                    throw new EOFException();
+                }
+            }
+
+            long quantum = Math.min(mRemaining, available);
+            if (mFlow.isShaped()) {
+                long delay = mFlow.getDelay();
+                if (delay > 0) {
+                    pause(delay);
+                    return;
+                }
+
+                quantum = Math.min(quantum, mFlow.getQuantum());
+            }
+
+            long count = mVideoProvider.transferVideoData(mChannel, mPosition, quantum);
+            if (count == 0) {
+                return;
+            }
+
+            if (count < 0) {
+                readChunk(quantum);
+            } else {
+                mPosition += count;
+                mRemaining -= count;
+                mTrace.onBytesSent(count);
+                mFlow.onSent(count);
+            }
+        }
+
+        finishResponse();
+    }
+
+    /**
+     * Move to the next range of the body, or the multipart trailer.
+     *
+     * @return false if the whole body is sent.
+     */
+    private boolean nextRange() {
+        if (!mResponse.hasBody()) {
+            return false;
+        }
+
+        List<HttpResponse.ByteRange> ranges = mResponse.getRanges();
+        if (mRangeIndex + 1 < ranges.size()) {
+            HttpResponse.ByteRange range = ranges.get(++mRangeIndex);
+            byte[] partHeader = range.getPartHeader();
+            mBodyBuffer = partHeader != null ? ByteBuffer.wrap(partHeader) : null;
+            mPosition = range.getStart();
+            mRemaining = range.getLength();
+
+            MediaLog.d(TAG, "Pre-SendVideoData, start = %d, length = %d.",
+                    mPosition, mRemaining);
+            return true;
+        }
+
+        if (mResponse.isMultipart() && !mTrailerSent) {
+            mTrailerSent = true;
+            mBodyBuffer = ByteBuffer.wrap(mResponse.encodeMultipartTrailer());
+            return true;
+        }
+
+        return false;
+    }
+
+    private void writeHeader() throws IOException {
+        long available = mVideoProvider != null
+                ? mVideoProvider.getAvailableLength() - mPosition : 0;
+        if (mBodyBuffer == null && mRemaining > 0 && available > 0
+                && !mVideoProvider.canTransferVideoData()) {
+            readChunk(Math.min(mRemaining, available));
+        }
+
+        if (mBodyBuffer == null) {
+            mChannel.write(mHeaderBuffer);
+            return;
+        }
+
+        int bodyRemaining = mBodyBuffer.remaining();
+        mGatherBuffers[0] = mHeaderBuffer;
+        mGatherBuffers[1] = mBodyBuffer;
+        mChannel.write(mGatherBuffers);
+        mGatherBuffers[0] = null;
+        mGatherBuffers[1] = null;
+        mTrace.onBytesSent(bodyRemaining - mBodyBuffer.remaining());
+    }
+
+    private void readChunk(long count) throws IOException {
+        if (mChunk == null) {
+            mChunk = new byte[mConfig.getSendBufferSize()];
+        }
+
+        int length = (int) Math.min(mChunk.length, count);
+        int read = mVideoProvider.readVideoData(mPosition, mChunk, 0, length);
+        if (read < 0) {
+            throw new EOFException();
+        }
+
+        mBodyBuffer = ByteBuffer.wrap(mChunk, 0, read);
+        mPosition += read;
+        mRemaining -= read;
+        mFlow.onSent(read);
+    }
+
+    /**
+     * Park until the provider has data at mPosition, with no write interest.
+     *
+     * @return false if the data is available already, or never will be.
+     */
+    private boolean waitForData() {
+        if (!mVideoProvider.waitForData(mPosition, mDataListener)) {
+            return false;
+        }
+
+        mIsWaitingData = true;
+        mKey.interestOps(getReadInterestOps());
+        return true;
+    }
+
+    /**
+     * Called by the engine on the selector thread, after the provider woke it up.
+     */
+    void onDataAvailable() {
+        if (!mIsWaitingData || mIsClosed) {
+            return;
+        }
+
+        mIsWaitingData = false;
+        mLastActiveTime = System.currentTimeMillis();
+        mKey.interestOps(getWriteInterestOps());
+    }
+
+    private void pause(long delay) {
+        mResumeTime = System.nanoTime() + delay;
+        mKey.interestOps(getReadInterestOps());
+    }
+
+    /**
+     * @return System.nanoTime() to resume the paused body at, 0 if not paused.
+     */
+    long getResumeTime() {
+        return mResumeTime;
+    }
+
+    void resume() {
+        mResumeTime = 0;
+        if (!mIsClosed) {
+            mLastActiveTime = System.currentTimeMillis();
+            mKey.interestOps(getWriteInterestOps());
+        }
+    }
+
+    private void finishResponse() throws IOException {
+        boolean keepAlive = mResponse.isKeepAlive();
+        if (!mResponse.isError()) {
+            MediaLog.d(TAG, "**Video Data Send Successfully!");
+        }
+
+        finishTrace(true);
+        mFlow.end();
+        endTransfer();
+        mResponse = null;
+        mVideoProvider = null;
+        mHeaderBuffer = null;
+        mBodyBuffer = null;
+
+        if (!keepAlive) {
+            close();
+            return;
+        }
+
+        mIsReadStalled = false;
+        mKey.interestOps(getReadInterestOps());
+        handleRequest();
+        if (mResponse == null && mIsInputShutdown) {
+            close();
+        }
+    }
+
+    private void finishTrace(boolean completed) {
+        mTrace.end(completed);
+        mStats.onRequestFinished(mTrace);
+    }
+
+    private void endTransfer() {
+        if (mTransfer == null) {
+            return;
+        }
+
+        mTracker.end(mTransferKey, mTransfer);
+        if (mTransfer.isCancelled()) {
+            mStats.onTransferCancelled();
+        }
+
+        // Bytes read into the chunk but never written.
+        if (mBodyBuffer != null && mBodyBuffer.array() == mChunk) {
+            mStats.onWastedBytes(mBodyBuffer.remaining());
+        }
+
+        mTransfer = null;
+        mTransferKey = null;
+    }
+
+    /**
+     * The client reset the connection, a write or read failed on it.
+     */
+    void onClientGone() {
+        MediaLog.d(TAG, "Client Left.");
+        if (mTransfer != null) {
+            mTransfer.cancel();
+        }
+
+        close();
+    }
+
+    void close() {
+        if (mIsClosed) {
+            return;
+        }
+
+        mIsClosed = true;
+        if (mResponse != null) {
+            finishTrace(false);
+            mResponse = null;
+        }
+
+        mFlow.end();
+        endTransfer();
+
+        mKey.cancel();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        mStats.onSessionFinished();
+        MediaLog.d(TAG, "Video HttpSession Finished.");
+    }
+}
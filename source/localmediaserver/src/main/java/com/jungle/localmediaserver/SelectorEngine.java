@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.log.MediaLog;
+import com.jungle.localmediaserver.provider.MediaTransfer;
+import com.jungle.localmediaserver.stats.ServerStats;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Single-threaded engine, all sessions are multiplexed on one java.nio Selector
+ * with non-blocking reads & writes.
+ *
+ * Provider reads still run on the selector thread, so this engine fits best
+ * with many mostly-idle connections over fast local storage.
+ *
+ * Sessions paused by the BandwidthScheduler are kept aside, and the select
+ * timeout is cut to resume the earliest of them in time. Sessions parked until
+ * a growing file has more data are queued by wakeUp() from the writer's thread.
+ */
+public class SelectorEngine implements SessionEngine {
+
+    private static final String TAG = "SelectorEngine";
+    private static final long SELECT_TIMEOUT = 1000;
+
+
+    private Thread mWorkThread;
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private MediaRegistry mRegistry;
+    private ServerConfig mConfig;
+    private ServerStats mStats;
+    private BandwidthScheduler mScheduler;
+    private TransferTracker mTracker;
+    private ArrayList<NioHttpSession> mPausedSessions = new ArrayList<>();
+    private ConcurrentLinkedQueue<NioHttpSession> mWokenSessions =
+            new ConcurrentLinkedQueue<>();
+    private long mLastIdleCheckTime;
+    private volatile boolean mIsWorking = false;
+
+
+    @Override
+    public void start(ServerSocketChannel serverChannel, MediaRegistry registry,
+            ServerConfig config, ServerStats stats) throws IOException {
+
+        mServerChannel = serverChannel;
+        mRegistry = registry;
+        mConfig = config;
+        mStats = stats;
+        mScheduler = new BandwidthScheduler(config);
+        mTracker = new TransferTracker(config);
+        mSelector = Selector.open();
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+
+        mWorkThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mIsWorking) {
+                    try {
+                        mSelector.select(getSelectTimeout());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        break;
+                    }
+
+                    Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        handleKey(key);
+                    }
+
+                    resumePausedSessions();
+                    resumeWokenSessions();
+                    closeIdleSessions();
+                }
+
+                closeAllSessions();
+            }
+        });
+
+        mIsWorking = true;
+        mWorkThread.setName(SelectorEngine.class.getSimpleName());
+        mWorkThread.setDaemon(true);
+        mWorkThread.start();
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+
+        if (key.isAcceptable()) {
+            acceptSessions();
+            return;
+        }
+
+        NioHttpSession session = (NioHttpSession) key.attachment();
+        boolean wasPaused = session.getResumeTime() != 0;
+        try {
+            if (key.isReadable()) {
+                session.onReadable();
+            }
+
+            // Sessions keep reading while sending, a read may close the session.
+            if (key.isValid() && key.isWritable()) {
+                session.onWritable();
+            }
+
+            // Paused sessions still read, they are already in the list then.
+            if (!wasPaused && session.getResumeTime() != 0) {
+                mPausedSessions.add(session);
+            }
+        } catch (Exception e) {
+            if (MediaTransfer.isClientGone(e)) {
+                session.onClientGone();
+                return;
+            }
+
+            MediaLog.e(TAG, "Something Wrong.Handle Request & Response FAILED!", e);
+            session.close();
+        }
+    }
+
+    private void acceptSessions() {
+        try {
+            SocketChannel channel;
+            while ((channel = mServerChannel.accept()) != null) {
+                MediaLog.d(TAG, "Recv New Video Request!");
+                channel.configureBlocking(false);
+                mConfig.applyTo(channel.socket());
+                SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+                key.attach(new NioHttpSession(
+                        channel, key, this, mRegistry, mConfig, mStats, mScheduler, mTracker));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private long getSelectTimeout() {
+        long timeout = SELECT_TIMEOUT;
+        long now = System.nanoTime();
+        for (NioHttpSession session : mPausedSessions) {
+            long delay = TimeUnit.NANOSECONDS.toMillis(session.getResumeTime() - now);
+            timeout = Math.min(timeout, Math.max(1, delay));
+        }
+
+        return timeout;
+    }
+
+    private void resumePausedSessions() {
+        long now = System.nanoTime();
+        Iterator<NioHttpSession> iterator = mPausedSessions.iterator();
+        while (iterator.hasNext()) {
+            NioHttpSession session = iterator.next();
+            if (session.getResumeTime() - now <= 0) {
+                iterator.remove();
+                session.resume();
+            }
+        }
+    }
+
+    /**
+     * Resume session on the selector thread, may be called from any thread.
+     */
+    void wakeUp(NioHttpSession session) {
+        mWokenSessions.add(session);
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void resumeWokenSessions() {
+        NioHttpSession session;
+        while ((session = mWokenSessions.poll()) != null) {
+            session.onDataAvailable();
+        }
+    }
+
+    private void closeIdleSessions() {
+        long now = System.currentTimeMillis();
+        if (now - mLastIdleCheckTime < SELECT_TIMEOUT) {
+            return;
+        }
+
+        mLastIdleCheckTime = now;
+        for (SelectionKey key : mSelector.keys()) {
+            Object session = key.attachment();
+            if (session instanceof NioHttpSession
+                    && ((NioHttpSession) session).isIdleTimeout(now)) {
+                ((NioHttpSession) session).close();
+            }
+        }
+    }
+
+    private void closeAllSessions() {
+        for (SelectionKey key : mSelector.keys()) {
+            Object session = key.attachment();
+            if (session instanceof NioHttpSession) {
+                ((NioHttpSession) session).close();
+            }
+        }
+
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void stop() {
+        mIsWorking = false;
+
+        try {
+            if (mSelector != null) {
+                mSelector.wakeup();
+            }
+
+            if (mWorkThread != null) {
+                mWorkThread.join();
+            }
+
+            if (mServerChannel != null) {
+                mServerChannel.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/*
+ * Tuning of the server, change it through LocalMediaServer.getConfig() before start().
+ *
+ * Output pipeline:
+ *      response header + body -> send buffer (sendBufferSize, heap or direct)
+ *          -> socket (SO_SNDBUF = socketSendBufferSize, TCP_NODELAY = tcpNoDelay)
+ *
+ * Bodies are paced by the engine's BandwidthScheduler (rate limits in bytes per second).
+ */
+public class ServerConfig {
+
+    public static final int DEFAULT_SEND_BUFFER_SIZE = 64 * FileUtils.KB;
+    public static final long DEFAULT_BACKGROUND_RATE_LIMIT = 256 * FileUtils.KB;
+
+
+    private int mSendBufferSize = DEFAULT_SEND_BUFFER_SIZE;
+    private boolean mUseDirectSendBuffer = false;
+    private int mSocketSendBufferSize = 0;
+    private boolean mTcpNoDelay = true;
+    private boolean mStatsEndpointEnabled = false;
+    private long mSessionRateLimit = 0;
+    private long mGlobalRateLimit = 0;
+    private long mBackgroundRateLimit = DEFAULT_BACKGROUND_RATE_LIMIT;
+    private boolean mCancelSupersededTransfers = false;
+
+
+    public int getSendBufferSize() {
+        return mSendBufferSize;
+    }
+
+    /**
+     * Size of the per-session send buffer, small writes are coalesced in it.
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        mSendBufferSize = sendBufferSize;
+    }
+
+    public boolean isUseDirectSendBuffer() {
+        return mUseDirectSendBuffer;
+    }
+
+    /**
+     * Keep the send buffer out of the Java heap, saves a copy when writing to sockets.
+     */
+    public void setUseDirectSendBuffer(boolean useDirectSendBuffer) {
+        mUseDirectSendBuffer = useDirectSendBuffer;
+    }
+
+    public int getSocketSendBufferSize() {
+        return mSocketSendBufferSize;
+    }
+
+    /**
+     * SO_SNDBUF of accepted sockets, 0 keeps the system default.
+     */
+    public void setSocketSendBufferSize(int socketSendBufferSize) {
+        mSocketSendBufferSize = socketSendBufferSize;
+    }
+
+    public boolean isTcpNoDelay() {
+        return mTcpNoDelay;
+    }
+
+    /**
+     * Writes are already coalesced by the send buffer, so Nagle's algorithm
+     * only delays the tail of responses. Enabled by default.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        mTcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isStatsEndpointEnabled() {
+        return mStatsEndpointEnabled;
+    }
+
+    /**
+     * Serve LocalMediaServer.getStats() as JSON on "GET /_stats", disabled by default.
+     */
+    public void setStatsEndpointEnabled(boolean statsEndpointEnabled) {
+        mStatsEndpointEnabled = statsEndpointEnabled;
+    }
+
+    public long getSessionRateLimit() {
+        return mSessionRateLimit;
+    }
+
+    /**
+     * Max body rate of each session, 0 for unlimited (default).
+     */
+    public void setSessionRateLimit(long bytesPerSecond) {
+        mSessionRateLimit = bytesPerSecond;
+    }
+
+    public long getGlobalRateLimit() {
+        return mGlobalRateLimit;
+    }
+
+    /**
+     * Max body rate of all sessions together, 0 for unlimited (default).
+     * Foreground sessions get the bytes first.
+     */
+    public void setGlobalRateLimit(long bytesPerSecond) {
+        mGlobalRateLimit = bytesPerSecond;
+    }
+
+    public long getBackgroundRateLimit() {
+        return mBackgroundRateLimit;
+    }
+
+    /**
+     * Max body rate of all "?priority=background" requests together while a
+     * foreground body is sent, 0 to pause them meanwhile.
+     */
+    public void setBackgroundRateLimit(long bytesPerSecond) {
+        mBackgroundRateLimit = bytesPerSecond;
+    }
+
+    public boolean isCancelSupersededTransfers() {
+        return mCancelSupersededTransfers;
+    }
+
+    /**
+     * Cancel the body still being sent for a file when the same player requests
+     * that file again (e.g. after a seek), disabled by default. Requests are from
+     * the same player when their priority and X-Playback-Session-Id header match.
+     *
+     * MediaPlayer & ExoPlayer send no such header, so any two concurrent requests
+     * of one file collide: a player's tail probe for the moov atom, or a thumbnail
+     * read during playback, would cut the stream still playing. Only enable this
+     * when every client of the file sends its own X-Playback-Session-Id, or never
+     * reads the same file twice at a time.
+     */
+    public void setCancelSupersededTransfers(boolean cancelSupersededTransfers) {
+        mCancelSupersededTransfers = cancelSupersededTransfers;
+    }
+
+    void applyTo(Socket socket) {
+        try {
+            socket.setTcpNoDelay(mTcpNoDelay);
+            if (mSocketSendBufferSize > 0) {
+                socket.setSendBufferSize(mSocketSendBufferSize);
+            }
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+    }
+}
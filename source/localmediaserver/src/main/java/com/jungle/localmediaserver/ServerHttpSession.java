@@ -8,22 +8,22 @@
 
 package com.jungle.localmediaserver;
 
-import android.text.TextUtils;
-import android.util.Log;
-import android.util.SparseArray;
+import com.jungle.localmediaserver.log.MediaLog;
 import com.jungle.localmediaserver.provider.MediaDataProvider;
+import com.jungle.localmediaserver.provider.MediaTransfer;
+import com.jungle.localmediaserver.stats.RequestTrace;
+import com.jungle.localmediaserver.stats.ServerStats;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.Enumeration;
-import java.util.Properties;
-import java.util.StringTokenizer;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
 
 /*
  * Local-Http-Server-Session for streaming-video.
@@ -45,38 +45,119 @@ import java.util.StringTokenizer;
  *      Content-Length: yyy
  *      Content-Type: video/mp4
  *      Content-Range: mmm-nnn/yyy
+ *
+ * 3> Multiple ranges: 206 multipart/byteranges, see HttpResponse.
+ *
+ * Connection:
+ *      HTTP/1.1 connections are kept alive (HTTP/1.0 only with "Connection: keep-alive"),
+ *      pipelined requests are served in order until "Connection: close", a
+ *      request that failed to parse or has a body, or the idle timeout. While
+ *      waiting for the next request the session is idle, and its engine may
+ *      close it to serve a new connection (IdleListener).
+ *
+ * Output:
+ *      header & body are coalesced in the session's send buffer (ServerConfig),
+ *      and flushed once at the end of each response.
+ *
+ * Stats:
+ *      every request is traced (time to first byte, duration, bytes sent) into ServerStats.
+ *
+ * Pacing:
+ *      shaped bodies (rate limits, background priority) are sent in quanta,
+ *      waiting on the engine's BandwidthScheduler before each.
+ *
+ * Cancellation:
+ *      a newer request of the same player for the same file cancels the body
+ *      in flight (see TransferTracker): the socket is closed, so a write blocked
+ *      on the old client fails at once, and the provider stops at its next chunk.
+ *      While sending, the session peeks at the input between chunks (at most
+ *      every PEER_CHECK_INTERVAL), so a client resetting the connection cancels
+ *      the body before its next write. End of stream there may be a half-close,
+ *      the body is still sent, and a client really gone fails that write: either
+ *      way the transfer is cancelled, not failed.
  */
 public class ServerHttpSession implements Runnable {
 
     public static final String TAG = "ServerHttpSession";
 
+    static final int REQUEST_TIMEOUT = 30 * 1000;
+    static final int KEEP_ALIVE_TIMEOUT = 15 * 1000;
+    static final int MAX_KEEP_ALIVE_REQUESTS = 100;
+    static final long PEER_CHECK_INTERVAL = 100 * 1000 * 1000L;
 
-    private static class StatusCode {
-        public static final int OK = 200;
-        public static final int PARTIAL_CONTENT = 206;
-        public static final int BAD_REQUEST = 400;
-        public static final int RANGE_NOT_SATISFIABLE = 416;
-        public static final int INTERNAL_SERVER_ERROR = 500;
+
+    /**
+     * Notified while the session waits for the next request of a keep-alive
+     * connection, so engines with few threads can reclaim idle connections.
+     */
+    interface IdleListener {
+
+        /**
+         * @return false to close the connection instead of waiting.
+         */
+        boolean onIdle(ServerHttpSession session);
+
+        /**
+         * The next request arrived, or the connection is closed.
+         */
+        void onIdleEnd(ServerHttpSession session);
     }
 
 
     private Socket mSocket;
-    private MediaDataProvider mVideoProvider;
-    private SparseArray<String> mStatusMap = new SparseArray<>();
+    private MediaRegistry mRegistry;
+    private ServerConfig mConfig;
+    private ServerStats mStats;
+    private BandwidthScheduler.Flow mFlow;
+    private TransferTracker mTracker;
+    private ChannelOutputStream mOutputStream;
+    private HttpRequestParser mParser = new HttpRequestParser();
+    private HttpResponseWriter mResponseWriter = new HttpResponseWriter();
+    private RequestTrace mTrace = new RequestTrace();
+    private IdleListener mIdleListener;
+    private boolean mIsIdle = false;
+    private boolean mIsReclaimed = false;
+    private Thread mThread;
+    private long mNextPeerCheckTime;
+    private boolean mIsInputShutdown = false;
+
+
+    public ServerHttpSession(Socket socket, MediaRegistry registry, ServerConfig config,
+            ServerStats stats, BandwidthScheduler scheduler, TransferTracker tracker) {
 
-
-    public ServerHttpSession(Socket socket, MediaDataProvider videoProvider) {
         mSocket = socket;
-        mVideoProvider = videoProvider;
-        initStatusMap();
+        mRegistry = registry;
+        mConfig = config;
+        mStats = stats;
+        mFlow = scheduler.openFlow();
+        mTracker = tracker;
+    }
+
+    void setIdleListener(IdleListener listener) {
+        mIdleListener = listener;
     }
 
-    private void initStatusMap() {
-        mStatusMap.put(StatusCode.OK, "OK");
-        mStatusMap.put(StatusCode.PARTIAL_CONTENT, "Partial Content");
-        mStatusMap.put(StatusCode.BAD_REQUEST, "Bad Request");
-        mStatusMap.put(StatusCode.RANGE_NOT_SATISFIABLE, "Range not satisfiable");
-        mStatusMap.put(StatusCode.INTERNAL_SERVER_ERROR, "Internal Server Error");
+    /**
+     * Close the connection if the session is idle, from another thread. The
+     * client sees a keep-alive connection closed by the server, and retries
+     * on a new one.
+     *
+     * @return false if the session is busy with a request.
+     */
+    synchronized boolean reclaim() {
+        if (!mIsIdle || mIsReclaimed) {
+            return false;
+        }
+
+        mIsReclaimed = true;
+        try {
+            // Wakes the blocked read with end of stream.
+            mSocket.shutdownInput();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return true;
     }
 
     public void start() {
@@ -88,19 +169,37 @@ public class ServerHttpSession implements Runnable {
     @Override
     public void run() {
         InputStream stream = null;
+        mThread = Thread.currentThread();
+        mStats.onSessionStarted();
         try {
             stream = mSocket.getInputStream();
             if (stream == null) {
                 return;
             }
 
-            Properties header = handleRequest(stream);
-            if (header != null) {
-                handleResponse(header);
+            int requestCount = 0;
+            while (true) {
+                mSocket.setSoTimeout(requestCount == 0
+                        ? REQUEST_TIMEOUT : KEEP_ALIVE_TIMEOUT);
+
+                HttpRequest request = handleRequest(stream, requestCount > 0);
+                if (request == null) {
+                    break;
+                }
+
+                ++requestCount;
+                HttpResponse response = HttpResponse.create(request, mRegistry,
+                        mConfig.isStatsEndpointEnabled() ? mStats : null);
+                response.setKeepAlive(request.isKeepAlive()
+                        && requestCount < MAX_KEEP_ALIVE_REQUESTS);
+
+                mFlow.begin(BandwidthScheduler.getPriority(request));
+                if (!sendResponse(response, request) || !response.isKeepAlive()) {
+                    break;
+                }
             }
         } catch (Exception e) {
-            Log.e(TAG, "Something Wrong.Handle Request & Response FAILED!");
-            e.printStackTrace();
+            MediaLog.e(TAG, "Something Wrong.Handle Request & Response FAILED!", e);
         } finally {
             try {
                 mSocket.close();
@@ -109,219 +208,294 @@ public class ServerHttpSession implements Runnable {
             }
 
             FileUtils.closeStream(stream);
-            Log.e(TAG, "Video HttpSession Finished.");
+            if (mIdleListener != null) {
+                mIdleListener.onIdleEnd(this);
+            }
+
+            mStats.onSessionFinished();
+            MediaLog.d(TAG, "Video HttpSession Finished.");
         }
     }
 
-    private Properties handleRequest(InputStream stream) {
+    /**
+     * @param isKeepAlive whether a request was served on the connection, the
+     *                    session is idle until the next one starts to arrive.
+     */
+    private HttpRequest handleRequest(InputStream stream, boolean isKeepAlive) {
         try {
-            byte[] buffer = new byte[8 * FileUtils.KB];
-            int len = stream.read(buffer);
-            if (len < 0) {
-                return null;
-            }
+            // Bytes of pipelined requests are kept by the parser.
+            while (true) {
+                HttpRequest request = mParser.parse();
+                if (request != null) {
+                    mTrace.begin(request.getUri());
+                    return request;
+                }
 
-            ByteArrayInputStream byteStream = new ByteArrayInputStream(buffer, 0, len);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(byteStream));
-            try {
-                return decodeRequestHeader(reader);
-            } catch (Exception e) {
-                sendError(StatusCode.INTERNAL_SERVER_ERROR, String.format(
-                        "Server Internal Error: %s", e.getMessage()));
+                boolean isIdle = isKeepAlive && !mParser.hasPendingBytes();
+                if (isIdle && !setIdle(true)) {
+                    MediaLog.d(TAG, "Keep-Alive Connection Reclaimed.");
+                    return null;
+                }
+
+                int count = mParser.fill(stream);
+                if (isIdle && !setIdle(false)) {
+                    MediaLog.d(TAG, "Keep-Alive Connection Reclaimed.");
+                    return null;
+                }
+
+                if (count < 0) {
+                    return null;
+                }
             }
+        } catch (SocketTimeoutException e) {
+            MediaLog.d(TAG, "Keep-Alive Connection Idle Timeout.");
+        } catch (HttpRequest.HttpRequestException e) {
+            mTrace.begin(null);
+            sendResponse(HttpResponse.error(e.getStatusCode(), e.getMessage()), null);
         } catch (IOException e) {
-            Log.e(TAG, "Parse Request Header FAILED!");
-            e.printStackTrace();
+            if (MediaTransfer.isClientGone(e)) {
+                MediaLog.d(TAG, "Client Left.");
+            } else {
+                MediaLog.e(TAG, "Parse Request Header FAILED!", e);
+            }
+        } catch (Exception e) {
+            mTrace.begin(null);
+            sendResponse(HttpResponse.error(HttpResponse.StatusCode.INTERNAL_SERVER_ERROR,
+                    String.format("Server Internal Error: %s", e.getMessage())), null);
         }
 
         return null;
     }
 
-    private void handleResponse(Properties header) {
-        final long contentLength = mVideoProvider.getContentLength();
-        long start = 0;
-        long end = -1;
-        int statusCode = StatusCode.OK;
-        long sendLength = 0;
-
-        String range = header.getProperty("range");
-        if (range == null) {
-            end = contentLength - 1;
-            sendLength = contentLength;
-        } else {
-            final String bytesStart = "bytes=";
-            if (!range.startsWith(bytesStart)) {
-                sendError(StatusCode.RANGE_NOT_SATISFIABLE, String.format(
-                        "Range Syntax is Error! [%s]", range));
-                return;
-            }
+    /**
+     * @return false if the connection was reclaimed and must be closed.
+     */
+    private boolean setIdle(boolean isIdle) {
+        IdleListener listener = mIdleListener;
+        if (listener == null) {
+            return true;
+        }
 
-            statusCode = StatusCode.PARTIAL_CONTENT;
-            range = range.substring(bytesStart.length());
-            int separatePos = range.indexOf("-");
-            if (separatePos > 0) {
-                try {
-                    String from = range.substring(0, separatePos);
-                    start = Long.parseLong(from);
-                    String to = range.substring(separatePos + 1);
-                    end = Long.parseLong(to);
-                } catch (NumberFormatException e) {
-                }
+        synchronized (this) {
+            mIsIdle = isIdle;
+            if (mIsReclaimed) {
+                return false;
             }
+        }
 
-            if (start < 0) {
-                start = 0;
-            }
+        if (!isIdle) {
+            listener.onIdleEnd(this);
+            return true;
+        }
 
-            if (end < 0 || end >= contentLength) {
-                end = contentLength - 1;
-            }
+        return listener.onIdle(this);
+    }
 
-            if (start >= contentLength) {
-                sendError(StatusCode.RANGE_NOT_SATISFIABLE, String.format(
-                        "Range Error[req = %s]! start = %d, end = %d, sendLength = %d, contentLength = %d.",
-                        range, start, end, end - start + 1, contentLength));
-                return;
+    private ChannelOutputStream getOutputStream() throws IOException {
+        if (mOutputStream == null) {
+            WritableByteChannel channel = mSocket.getChannel();
+            if (channel == null) {
+                channel = Channels.newChannel(mSocket.getOutputStream());
             }
 
-            sendLength = end - start + 1;
-            if (sendLength < 0) {
-                sendLength = 0;
-            }
+            mOutputStream = new ChannelOutputStream(channel,
+                    mConfig.getSendBufferSize(), mConfig.isUseDirectSendBuffer());
         }
 
-        Properties rspHeader = new Properties();
-        rspHeader.put("Content-Length", String.valueOf(sendLength));
-
-        final String rspRange = String.format("%d-%d/%d", start, end, contentLength);
-        if (statusCode != StatusCode.OK) {
-            rspHeader.put("Content-Range", String.format("bytes %s", rspRange));
-        }
+        return mOutputStream;
+    }
 
-        Log.e(TAG, String.format(
-                "Video Request Range[req = %s]: %s, [length = %d].\n",
-                String.valueOf(range), rspRange, sendLength));
+    /**
+     * @param request null for errors of unparsed requests.
+     */
+    private boolean sendResponse(HttpResponse response, HttpRequest request) {
+        List<HttpResponse.ByteRange> ranges = response.getRanges();
+        mTrace.onResponse(response.getStatusCode(),
+                !ranges.isEmpty() ? ranges.get(0).getStart() : 0,
+                response.hasBody() ? response.getBodyLength() : 0);
+
+        MediaTransfer transfer = null;
+        String transferKey = null;
+        if (response.getProvider() != null && response.hasBody() && request != null) {
+            transfer = new MediaTransfer() {
+                @Override
+                public void cancel() {
+                    super.cancel();
+                    abort();
+                }
 
-        sendResponse(statusCode, rspHeader, null, start, sendLength);
-    }
+                @Override
+                public void checkCancelled() throws CancelledException {
+                    // Parallel tasks check too, only the session thread reads the socket.
+                    if (Thread.currentThread() == mThread) {
+                        checkPeer(this);
+                    }
 
-    private void sendResponse(
-            int statusCode, Properties header, String errorMsg, long start, long length) {
+                    super.checkCancelled();
+                }
+            };
 
-        boolean error = !TextUtils.isEmpty(errorMsg)
-                || (statusCode != StatusCode.OK && statusCode != StatusCode.PARTIAL_CONTENT);
-        String mimeType = "video/mp4";
-        if (error) {
-            mimeType = "text/plain";
+            transferKey = mTracker.begin(request, transfer);
         }
 
-        OutputStream stream = null;
+        boolean completed = false;
         try {
-            stream = mSocket.getOutputStream();
-            PrintWriter writer = new PrintWriter(stream);
+            ChannelOutputStream stream = getOutputStream();
+            stream.resetFirstWriteTime();
+            ByteBuffer header = mResponseWriter.encode(response);
+            stream.write(header.array(), 0, header.limit());
+
+            if (!response.hasBody()) {
+                stream.flush();
+                completed = true;
+                return true;
+            }
 
-            String statusInfo = mStatusMap.get(statusCode);
-            if (statusInfo == null) {
-                statusInfo = "";
+            if (response.getProvider() == null) {
+                byte[] body = response.encodeBody();
+                stream.write(body);
+                stream.flush();
+                mTrace.onBytesSent(body.length);
+                completed = true;
+                return true;
             }
 
-            String result = String.format("HTTP/1.1 %d %s", statusCode, statusInfo);
-            writer.print(result + "\r\n");
-            Log.i(TAG, result);
+            for (HttpResponse.ByteRange range : ranges) {
+                if (range.getPartHeader() != null) {
+                    stream.write(range.getPartHeader());
+                    mTrace.onBytesSent(range.getPartHeader().length);
+                }
 
-            if (header == null) {
-                header = new Properties();
+                long sent = transfer.getBytesSent();
+                boolean isSent = sendVideoData(stream, response.getProvider(),
+                        range.getStart(), range.getLength(), transfer);
+                mTrace.onBytesSent(transfer.getBytesSent() - sent);
+                if (!isSent) {
+                    return false;
+                }
             }
 
-            header.put("Accept-Ranges", "bytes");
-            header.put("Connection", "keep-alive");
-            header.put("Content-Type", mimeType);
+            if (response.isMultipart()) {
+                byte[] trailer = response.encodeMultipartTrailer();
+                stream.write(trailer);
+                mTrace.onBytesSent(trailer.length);
+            }
 
-            Enumeration<?> e = header.keys();
-            while (e.hasMoreElements()) {
-                String key = (String) e.nextElement();
-                String value = header.getProperty(key);
-                String item = String.format("%s: %s", key, value);
-                writer.print(String.format("%s\r\n", item));
+            stream.flush();
+            completed = true;
+            return true;
+        } catch (IOException e) {
+            boolean isClientGone = MediaTransfer.isClientGone(e);
+            if (isClientGone && transfer != null && !transfer.isCancelled()) {
+                transfer.cancel();
+            }
 
-                Log.i(TAG, item);
+            if (isClientGone || transfer != null && transfer.isCancelled()) {
+                MediaLog.d(TAG, "Send Response Cancelled.");
+            } else {
+                MediaLog.e(TAG, "Send Response FAILED!", e);
             }
+        } finally {
+            mFlow.end();
+            if (transfer != null) {
+                endTransfer(transferKey, transfer);
+            }
+
+            finishTrace(completed);
+        }
 
-            writer.print("\r\n");
-            writer.flush();
+        return false;
+    }
 
-            if (error) {
-                writer.print(errorMsg);
-                writer.flush();
-            } else {
-                sendVideoData(stream, start, length);
+    /**
+     * Read what the client sent meanwhile without blocking, kept by the parser
+     * for the next request. A reset connection cancels transfer.
+     */
+    private void checkPeer(MediaTransfer transfer) {
+        SocketChannel channel = mSocket.getChannel();
+        long now = System.nanoTime();
+        if (channel == null || mIsInputShutdown || transfer.isCancelled()
+                || now - mNextPeerCheckTime < 0) {
+            return;
+        }
+
+        mNextPeerCheckTime = now + PEER_CHECK_INTERVAL;
+        try {
+            synchronized (channel.blockingLock()) {
+                channel.configureBlocking(false);
+                try {
+                    // End of stream, the client may still read the body.
+                    mIsInputShutdown = mParser.fill(channel) < 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            }
+        } catch (IOException e) {
+            if (!transfer.isCancelled()) {
+                MediaLog.d(TAG, "Client Left, Transfer Cancelled.");
+                transfer.cancel();
             }
+        }
+    }
 
-            stream.flush();
+    /**
+     * Reset the connection, from another thread too, failing the session's
+     * blocked write and dropping the bytes still queued for the old client.
+     */
+    private void abort() {
+        try {
+            mSocket.setSoLinger(true, 0);
+            mSocket.close();
         } catch (IOException e) {
-            Log.e(TAG, "Send Response FAILED!");
             e.printStackTrace();
-        } finally {
-            FileUtils.closeStream(stream);
         }
     }
 
-    private void sendError(int statusCode, String errorMsg) {
-        Log.e(TAG, String.format(
-                "SendError: statusCode = %d, info = %s, errorMsg = %s",
-                statusCode, String.valueOf(mStatusMap.get(statusCode)), errorMsg));
+    private void endTransfer(String transferKey, MediaTransfer transfer) {
+        mTracker.end(transferKey, transfer);
+        if (transfer.isCancelled()) {
+            mStats.onTransferCancelled();
+        }
 
-        sendResponse(statusCode, null, errorMsg, 0, 0);
+        mStats.onWastedBytes(transfer.getWastedBytes());
     }
 
-    private Properties decodeRequestHeader(BufferedReader reader) throws IOException {
-        String line = reader.readLine();
-        if (line == null) {
-            return null;
+    private void finishTrace(boolean completed) {
+        if (mOutputStream != null) {
+            mTrace.onFirstByte(mOutputStream.getFirstWriteTime());
         }
 
-        StringTokenizer tokenizer = new StringTokenizer(line);
-        if (!tokenizer.hasMoreTokens()) {
-            sendError(StatusCode.BAD_REQUEST, "Syntax Error");
-            return null;
-        }
+        mTrace.end(completed);
+        mStats.onRequestFinished(mTrace);
+    }
 
-        String method = tokenizer.nextToken();
-        if (method == null || !method.equalsIgnoreCase("GET")) {
-            return null;
-        }
+    private boolean sendVideoData(OutputStream stream, MediaDataProvider provider,
+            long start, long length, MediaTransfer transfer) throws IOException {
 
-        if (!tokenizer.hasMoreElements()) {
-            sendError(StatusCode.BAD_REQUEST, "Missing URI");
-            return null;
+        MediaLog.d(TAG, "Pre-SendVideoData, start = %d, length = %d.", start, length);
+        if (!mFlow.isShaped()) {
+            return provider.sendVideoData(
+                    stream, mSocket.getChannel(), start, length, transfer);
         }
 
-        Properties header = new Properties();
-        while (true) {
-            line = reader.readLine();
-            if (line == null) {
-                break;
-            }
+        final int quantum = mFlow.getQuantum();
+        while (length > 0) {
+            transfer.checkCancelled();
+            mFlow.await();
 
-            int pos = line.indexOf(":");
-            if (pos < 0) {
-                continue;
+            int count = (int) Math.min(length, quantum);
+            if (!provider.sendVideoData(
+                    stream, mSocket.getChannel(), start, count, transfer)) {
+                return false;
             }
 
-            String key = line.substring(0, pos).trim().toLowerCase();
-            String value = line.substring(pos + 1).trim().toLowerCase();
-            header.put(key, value);
-
-            Log.d(TAG, line);
+            // Flushed each quantum, so the socket sees the paced rate.
+            stream.flush();
+            mFlow.onSent(count);
+            start += count;
+            length -= count;
         }
 
-        return header;
-    }
-
-    private void sendVideoData(
-            OutputStream stream, long start, long length) {
-
-        Log.e(TAG, String.format("Pre-SendVideoData, start = %d, length = %d.", start, length));
-        mVideoProvider.sendVideoData(stream, (int) start, (int) length);
+        return true;
     }
 }
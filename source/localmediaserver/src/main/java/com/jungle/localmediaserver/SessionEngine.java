@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.stats.ServerStats;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+
+/*
+ * Execution engine accepting connections and running the Http sessions.
+ *
+ *      WorkerPoolEngine: blocking sessions on a bounded, reusable thread pool (default).
+ *      SelectorEngine:   all sessions multiplexed on one java.nio Selector thread.
+ */
+public interface SessionEngine {
+
+    /**
+     * Start serving on serverChannel, the engine owns the channel until stop().
+     *
+     * @param stats sessions & requests are recorded into it.
+     */
+    void start(ServerSocketChannel serverChannel, MediaRegistry registry,
+            ServerConfig config, ServerStats stats) throws IOException;
+
+    /**
+     * Stop accepting, close the server channel and all running sessions.
+     */
+    void stop();
+}
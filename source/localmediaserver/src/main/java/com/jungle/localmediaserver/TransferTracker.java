@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.log.MediaLog;
+import com.jungle.localmediaserver.provider.MediaTransfer;
+
+import java.util.HashMap;
+
+/*
+ * Body transfers in flight of one engine, by file & player.
+ *
+ *      GET /file (player P, seek)  --> begin()  --> cancel the transfer still
+ *                                                   sending /file to P
+ *
+ * A seeking player opens a new range request and drops the old connection,
+ * which the old session would only notice at its next failed write. Requests
+ * are from the same player when their path, priority and X-Playback-Session-Id
+ * header match, see ServerConfig.setCancelSupersededTransfers(). Without that
+ * header the key is only path & priority, so concurrent readers of one file
+ * (head & tail probes, thumbnails) collide, hence the option is opt-in.
+ */
+class TransferTracker {
+
+    private static final String TAG = ServerHttpSession.TAG;
+
+
+    private ServerConfig mConfig;
+    private HashMap<String, MediaTransfer> mTransfers = new HashMap<>();
+
+
+    TransferTracker(ServerConfig config) {
+        mConfig = config;
+    }
+
+    /**
+     * Track transfer sending the body of request, cancelling the one it supersedes.
+     *
+     * @return key to pass to end(), null if the transfer is not tracked.
+     */
+    String begin(HttpRequest request, MediaTransfer transfer) {
+        if (!mConfig.isCancelSupersededTransfers()) {
+            return null;
+        }
+
+        String key = getKey(request);
+        if (key == null) {
+            return null;
+        }
+
+        MediaTransfer superseded;
+        synchronized (this) {
+            superseded = mTransfers.put(key, transfer);
+        }
+
+        if (superseded != null) {
+            MediaLog.d(TAG, "Transfer Superseded by %s, Cancelled.", request.getUri());
+            superseded.cancel();
+        }
+
+        return key;
+    }
+
+    synchronized void end(String key, MediaTransfer transfer) {
+        if (key != null && mTransfers.get(key) == transfer) {
+            mTransfers.remove(key);
+        }
+    }
+
+    private static String getKey(HttpRequest request) {
+        String path = request.getPath();
+        if (path == null) {
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder(path);
+        builder.append('\n').append(BandwidthScheduler.getPriority(request));
+
+        String playbackSessionId = request.getPlaybackSessionId();
+        if (playbackSessionId != null) {
+            builder.append('\n').append(playbackSessionId);
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver;
+
+import com.jungle.localmediaserver.log.MediaLog;
+import com.jungle.localmediaserver.stats.ServerStats;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Blocking ServerHttpSessions running on a bounded thread pool.
+ *
+ * Idle workers are reused by the next connection and released after
+ * WORKER_KEEP_ALIVE_TIME, connections beyond poolSize wait in a bounded
+ * queue, and are closed when the queue is full.
+ *
+ * A keep-alive connection waiting for its next request holds its worker, so
+ * idle connections give their worker up to new ones:
+ *
+ *      accept --> all workers busy? --> close the longest idle connection
+ *      session idle --> connections queued? --> close itself
+ *
+ * Players reopen a closed keep-alive connection for their next request.
+ */
+public class WorkerPoolEngine implements SessionEngine {
+
+    private static final String TAG = "WorkerPoolEngine";
+
+    public static final int DEFAULT_POOL_SIZE = 8;
+    public static final int DEFAULT_QUEUE_SIZE = 32;
+
+    private static final long WORKER_KEEP_ALIVE_TIME = 30 * 1000;
+
+
+    private int mPoolSize;
+    private int mQueueSize;
+    private Thread mAcceptThread;
+    private ServerSocketChannel mServerChannel;
+    private ThreadPoolExecutor mExecutor;
+    private BandwidthScheduler mScheduler;
+    private TransferTracker mTracker;
+    private IdleSessions mIdleSessions = new IdleSessions();
+    private volatile boolean mIsWorking = false;
+
+
+    public WorkerPoolEngine() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_SIZE);
+    }
+
+    public WorkerPoolEngine(int poolSize, int queueSize) {
+        mPoolSize = poolSize;
+        mQueueSize = queueSize;
+    }
+
+    @Override
+    public void start(ServerSocketChannel serverChannel, final MediaRegistry registry,
+            final ServerConfig config, final ServerStats stats) {
+
+        mServerChannel = serverChannel;
+        mScheduler = new BandwidthScheduler(config);
+        mTracker = new TransferTracker(config);
+        mExecutor = new ThreadPoolExecutor(mPoolSize, mPoolSize,
+                WORKER_KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(mQueueSize), new WorkerThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mIsWorking) {
+                    try {
+                        Socket socket = mServerChannel.socket().accept();
+                        if (!mIsWorking || socket == null) {
+                            break;
+                        }
+
+                        MediaLog.d(TAG, "Recv New Video Request!");
+                        config.applyTo(socket);
+                        dispatch(socket, registry, config, stats);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+
+        mIsWorking = true;
+        mAcceptThread.setName(WorkerPoolEngine.class.getSimpleName());
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+    }
+
+    private void dispatch(Socket socket, MediaRegistry registry,
+            ServerConfig config, ServerStats stats) {
+
+        if (mExecutor.getActiveCount() >= mPoolSize) {
+            mIdleSessions.reclaimOne();
+        }
+
+        ServerHttpSession session = new ServerHttpSession(
+                socket, registry, config, stats, mScheduler, mTracker);
+        session.setIdleListener(mIdleSessions);
+        try {
+            mExecutor.execute(session);
+        } catch (RejectedExecutionException e) {
+            MediaLog.w(TAG, "Too Many Sessions! Connection Rejected.");
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        mIsWorking = false;
+
+        try {
+            if (mServerChannel != null) {
+                mServerChannel.close();
+            }
+
+            if (mAcceptThread != null) {
+                mAcceptThread.join();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Sessions waiting for the next request of their connection, longest idle first.
+     */
+    private class IdleSessions implements ServerHttpSession.IdleListener {
+
+        private LinkedHashSet<ServerHttpSession> mSessions = new LinkedHashSet<>();
+
+        @Override
+        public boolean onIdle(ServerHttpSession session) {
+            if (!mExecutor.getQueue().isEmpty()) {
+                MediaLog.d(TAG, "Connections Queued, Idle Connection Closed.");
+                return false;
+            }
+
+            synchronized (this) {
+                mSessions.add(session);
+            }
+
+            return true;
+        }
+
+        @Override
+        public synchronized void onIdleEnd(ServerHttpSession session) {
+            mSessions.remove(session);
+        }
+
+        void reclaimOne() {
+            while (true) {
+                ServerHttpSession session;
+                synchronized (this) {
+                    Iterator<ServerHttpSession> iterator = mSessions.iterator();
+                    if (!iterator.hasNext()) {
+                        return;
+                    }
+
+                    session = iterator.next();
+                    iterator.remove();
+                }
+
+                if (session.reclaim()) {
+                    MediaLog.d(TAG, "All Workers Busy, Idle Connection Closed.");
+                    return;
+                }
+            }
+        }
+    }
+
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private AtomicInteger mThreadIndex = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, String.format("%s-%d",
+                    ServerHttpSession.class.getSimpleName(), mThreadIndex.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
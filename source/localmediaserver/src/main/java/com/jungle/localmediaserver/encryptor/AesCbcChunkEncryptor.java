@@ -0,0 +1,84 @@
+package com.jungle.localmediaserver.encryptor;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * AES-CBC with PKCS5 padding, each chunk is its random IV followed by the
+ * ciphertext, so it grows by 17 to 32 bytes.
+ *
+ * encryptKey is a 16/24/32 bytes AES key.
+ */
+public class AesCbcChunkEncryptor implements ChunkEncryptor {
+
+    private static final int BLOCK_SIZE = 16;
+
+
+    private SecureRandom mRandom = new SecureRandom();
+    private ThreadLocal<Cipher> mCipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("AES/CBC/PKCS5Padding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+
+    @Override
+    public byte[] encryptChunk(long chunkIndex, byte[] buffer, int start, int count,
+                               byte[] encryptKey) {
+
+        byte[] iv = new byte[BLOCK_SIZE];
+        mRandom.nextBytes(iv);
+
+        Cipher cipher = mCipher.get();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(encryptKey, "AES"),
+                    new IvParameterSpec(iv));
+
+            byte[] chunk = new byte[BLOCK_SIZE + cipher.getOutputSize(count)];
+            System.arraycopy(iv, 0, chunk, 0, BLOCK_SIZE);
+            int length = BLOCK_SIZE + cipher.doFinal(buffer, start, count, chunk, BLOCK_SIZE);
+            if (length == chunk.length) {
+                return chunk;
+            }
+
+            byte[] result = new byte[length];
+            System.arraycopy(chunk, 0, result, 0, length);
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int decryptChunk(long chunkIndex, byte[] buffer, int start, int count,
+                            byte[] output, int outputStart, byte[] encryptKey) {
+
+        if (count < 2 * BLOCK_SIZE || count % BLOCK_SIZE != 0) {
+            return -1;
+        }
+
+        Cipher cipher = mCipher.get();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(encryptKey, "AES"),
+                    new IvParameterSpec(buffer, start, BLOCK_SIZE));
+            return cipher.doFinal(buffer, start + BLOCK_SIZE, count - BLOCK_SIZE,
+                    output, outputStart);
+        } catch (BadPaddingException e) {
+            return -1;
+        } catch (IllegalBlockSizeException e) {
+            return -1;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
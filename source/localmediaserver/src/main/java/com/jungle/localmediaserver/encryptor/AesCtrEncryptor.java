@@ -0,0 +1,146 @@
+package com.jungle.localmediaserver.encryptor;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * AES-CTR, the counter of the block at position is (initial counter + position / 16),
+ * so decrypting any range costs the same wherever it is in the file.
+ *
+ * Encrypt & decrypt are the same operation, encryptKey is a 16/24/32 bytes AES key.
+ *
+ * Each thread keeps its cipher running: a call continuing where the previous one
+ * of the thread ended, with the same key, is a plain update() and allocates
+ * nothing. Only a seek or a new key re-inits the cipher. In place decrypts go
+ * through a small scratch buffer, wiped after each call, because the provider's
+ * cipher copies the whole input when it overlaps the output.
+ */
+public class AesCtrEncryptor implements SeekableEncryptor {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int SCRATCH_SIZE = 16 * 1024;
+
+
+    private static class CipherState {
+        Cipher mCipher;
+        byte[] mKey;
+        SecretKeySpec mKeySpec;
+        byte[] mCounter = new byte[BLOCK_SIZE];
+        byte[] mScratch;
+        long mNextPosition = -1;
+    }
+
+
+    private byte[] mInitialCounter;
+    private ThreadLocal<CipherState> mCipherState = new ThreadLocal<CipherState>() {
+        @Override
+        protected CipherState initialValue() {
+            CipherState state = new CipherState();
+            try {
+                state.mCipher = Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+
+            return state;
+        }
+    };
+
+
+    /**
+     * @param initialCounter 16 bytes counter (nonce) of the first block.
+     */
+    public AesCtrEncryptor(byte[] initialCounter) {
+        if (initialCounter == null || initialCounter.length != BLOCK_SIZE) {
+            throw new IllegalArgumentException("Initial counter must be 16 bytes!");
+        }
+
+        mInitialCounter = initialCounter.clone();
+    }
+
+    @Override
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public int encrypt(long position, byte[] buffer, int start, int count,
+                       byte[] output, int outputStart, byte[] encryptKey) {
+
+        return decrypt(position, buffer, start, count, output, outputStart, encryptKey);
+    }
+
+    @Override
+    public int decrypt(long position, byte[] buffer, int start, int count,
+                       byte[] output, int outputStart, byte[] encryptKey) {
+
+        if (position % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("Position must be aligned to block size!");
+        }
+
+        CipherState state = mCipherState.get();
+        try {
+            if (state.mKey == null || !Arrays.equals(state.mKey, encryptKey)) {
+                state.mKey = encryptKey.clone();
+                state.mKeySpec = new SecretKeySpec(encryptKey, "AES");
+                state.mNextPosition = -1;
+            }
+
+            if (position != state.mNextPosition) {
+                counterAt(position / BLOCK_SIZE, state.mCounter);
+                state.mCipher.init(Cipher.DECRYPT_MODE, state.mKeySpec,
+                        new IvParameterSpec(state.mCounter));
+            }
+
+            // Invalid until the update succeeded.
+            state.mNextPosition = -1;
+            int length = buffer != output
+                    ? state.mCipher.update(buffer, start, count, output, outputStart)
+                    : updateInPlace(state, buffer, start, count, outputStart);
+            state.mNextPosition = position + count;
+            return length;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int updateInPlace(CipherState state, byte[] buffer,
+            int start, int count, int outputStart) throws GeneralSecurityException {
+
+        if (state.mScratch == null) {
+            state.mScratch = new byte[SCRATCH_SIZE];
+        }
+
+        byte[] scratch = state.mScratch;
+        int length = 0;
+        int used = 0;
+        try {
+            for (int done = 0; done < count; ) {
+                int chunk = Math.min(count - done, scratch.length);
+                int written = state.mCipher.update(buffer, start + done, chunk, scratch, 0);
+                System.arraycopy(scratch, 0, buffer, outputStart + length, written);
+                used = Math.max(used, written);
+                length += written;
+                done += chunk;
+            }
+        } finally {
+            Arrays.fill(scratch, 0, used, (byte) 0);
+        }
+
+        return length;
+    }
+
+    private void counterAt(long blockIndex, byte[] counter) {
+        System.arraycopy(mInitialCounter, 0, counter, 0, BLOCK_SIZE);
+        int carry = 0;
+        for (int i = BLOCK_SIZE - 1; i >= 0; --i) {
+            int sum = (counter[i] & 0xff) + (int) (blockIndex & 0xff) + carry;
+            counter[i] = (byte) sum;
+            carry = sum >> 8;
+            blockIndex >>>= 8;
+        }
+    }
+}
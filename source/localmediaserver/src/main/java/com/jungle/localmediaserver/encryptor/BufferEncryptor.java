@@ -0,0 +1,20 @@
+package com.jungle.localmediaserver.encryptor;
+
+/**
+ * Encryptor writing into a caller-supplied buffer, output may be the input
+ * buffer itself (in-place). Ciphers must keep the data length unchanged.
+ */
+public interface BufferEncryptor {
+
+    /**
+     * @return count of bytes written to output.
+     */
+    int encrypt(byte[] buffer, int start, int count,
+                byte[] output, int outputStart, byte[] encryptKey);
+
+    /**
+     * @return count of bytes written to output.
+     */
+    int decrypt(byte[] buffer, int start, int count,
+                byte[] output, int outputStart, byte[] encryptKey);
+}
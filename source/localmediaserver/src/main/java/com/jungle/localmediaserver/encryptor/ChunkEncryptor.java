@@ -0,0 +1,22 @@
+package com.jungle.localmediaserver.encryptor;
+
+/**
+ * Encryptor of the chunks of a chunked container, each chunk is encrypted on
+ * its own. Unlike {@link SeekableEncryptor}, ciphers may change the data length
+ * (IV, padding, authentication tag): any range is read by decrypting only the
+ * chunks covering it.
+ */
+public interface ChunkEncryptor {
+
+    /**
+     * @return the encrypted chunk.
+     */
+    byte[] encryptChunk(long chunkIndex, byte[] buffer, int start, int count, byte[] encryptKey);
+
+    /**
+     * @param output room for count bytes from outputStart.
+     * @return count of plain bytes written to output, -1 if the chunk is corrupted.
+     */
+    int decryptChunk(long chunkIndex, byte[] buffer, int start, int count,
+                     byte[] output, int outputStart, byte[] encryptKey);
+}
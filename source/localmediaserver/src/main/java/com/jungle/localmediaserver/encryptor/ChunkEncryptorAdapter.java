@@ -0,0 +1,35 @@
+package com.jungle.localmediaserver.encryptor;
+
+/**
+ * Use an array based {@link Encryptor} for the chunks of a chunked container,
+ * the chunk index is ignored.
+ */
+public class ChunkEncryptorAdapter implements ChunkEncryptor {
+
+    private Encryptor mEncryptor;
+
+
+    public ChunkEncryptorAdapter(Encryptor encryptor) {
+        mEncryptor = encryptor;
+    }
+
+    @Override
+    public byte[] encryptChunk(long chunkIndex, byte[] buffer, int start, int count,
+                               byte[] encryptKey) {
+
+        return mEncryptor.encrypt(buffer, start, count, encryptKey);
+    }
+
+    @Override
+    public int decryptChunk(long chunkIndex, byte[] buffer, int start, int count,
+                            byte[] output, int outputStart, byte[] encryptKey) {
+
+        byte[] decrypted = mEncryptor.decrypt(buffer, start, count, encryptKey);
+        if (decrypted == null || decrypted.length > count) {
+            return -1;
+        }
+
+        System.arraycopy(decrypted, 0, output, outputStart, decrypted.length);
+        return decrypted.length;
+    }
+}
@@ -0,0 +1,33 @@
+package com.jungle.localmediaserver.encryptor;
+
+/**
+ * Adapts an array-returning {@link Encryptor} to {@link BufferEncryptor},
+ * still allocating one array per call inside the wrapped encryptor.
+ */
+public class EncryptorAdapter implements BufferEncryptor {
+
+    private Encryptor mEncryptor;
+
+
+    public EncryptorAdapter(Encryptor encryptor) {
+        mEncryptor = encryptor;
+    }
+
+    @Override
+    public int encrypt(byte[] buffer, int start, int count,
+                       byte[] output, int outputStart, byte[] encryptKey) {
+
+        byte[] encrypted = mEncryptor.encrypt(buffer, start, count, encryptKey);
+        System.arraycopy(encrypted, 0, output, outputStart, encrypted.length);
+        return encrypted.length;
+    }
+
+    @Override
+    public int decrypt(byte[] buffer, int start, int count,
+                       byte[] output, int outputStart, byte[] encryptKey) {
+
+        byte[] decrypted = mEncryptor.decrypt(buffer, start, count, encryptKey);
+        System.arraycopy(decrypted, 0, output, outputStart, decrypted.length);
+        return decrypted.length;
+    }
+}
@@ -0,0 +1,26 @@
+package com.jungle.localmediaserver.encryptor;
+
+/**
+ * Encryptor aware of the absolute file offset of the data, e.g. AES-CTR with
+ * the counter derived from the position, so any range can be decrypted
+ * without decrypting from the start of the file.
+ *
+ * Callers always pass a position aligned to {@link #getBlockSize()}, count may
+ * end inside a block. Ciphers must keep the data length unchanged.
+ */
+public interface SeekableEncryptor {
+
+    int getBlockSize();
+
+    /**
+     * @return count of bytes written to output.
+     */
+    int encrypt(long position, byte[] buffer, int start, int count,
+                byte[] output, int outputStart, byte[] encryptKey);
+
+    /**
+     * @return count of bytes written to output.
+     */
+    int decrypt(long position, byte[] buffer, int start, int count,
+                byte[] output, int outputStart, byte[] encryptKey);
+}
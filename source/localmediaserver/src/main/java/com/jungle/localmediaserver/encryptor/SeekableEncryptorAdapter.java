@@ -0,0 +1,34 @@
+package com.jungle.localmediaserver.encryptor;
+
+/**
+ * Adapts a position-independent {@link BufferEncryptor} (e.g. XOR-style) to
+ * {@link SeekableEncryptor}, the position is ignored.
+ */
+public class SeekableEncryptorAdapter implements SeekableEncryptor {
+
+    private BufferEncryptor mEncryptor;
+
+
+    public SeekableEncryptorAdapter(BufferEncryptor encryptor) {
+        mEncryptor = encryptor;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return 1;
+    }
+
+    @Override
+    public int encrypt(long position, byte[] buffer, int start, int count,
+                       byte[] output, int outputStart, byte[] encryptKey) {
+
+        return mEncryptor.encrypt(buffer, start, count, output, outputStart, encryptKey);
+    }
+
+    @Override
+    public int decrypt(long position, byte[] buffer, int start, int count,
+                       byte[] output, int outputStart, byte[] encryptKey) {
+
+        return mEncryptor.decrypt(buffer, start, count, output, outputStart, encryptKey);
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.log;
+
+import android.util.Log;
+
+/*
+ * Write log messages to logcat, the default sink.
+ */
+public class AndroidLogSink implements LogSink {
+
+    @Override
+    public void log(int level, String tag, String message, Throwable tr) {
+        if (tr != null) {
+            message = message + '\n' + Log.getStackTraceString(tr);
+        }
+
+        Log.println(level, tag, message);
+    }
+}
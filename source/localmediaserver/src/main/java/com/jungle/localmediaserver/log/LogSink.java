@@ -0,0 +1,21 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.log;
+
+/*
+ * Destination of the library's log messages, see MediaLog.setSink().
+ */
+public interface LogSink {
+
+    /**
+     * @param level one of the MediaLog levels.
+     * @param tr may be null.
+     */
+    void log(int level, String tag, String message, Throwable tr);
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.log;
+
+/*
+ * Logging facade of the library.
+ *
+ *      MediaLog.d(TAG, "start = %d", start)
+ *          |
+ *          |- level < MIN_LEVEL (compile-time) or level < getLevel() (runtime)
+ *          |      -> returns, nothing formatted or allocated
+ *          |
+ *          |- otherwise -> message formatted -> LogSink (logcat by default,
+ *                          or a RingBufferLogSink drained by a background thread)
+ *
+ * Overloads taking long arguments avoid boxing & varargs arrays on the
+ * streaming path, other call sites guard with isLoggable().
+ */
+public final class MediaLog {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int NONE = 7;
+
+    /**
+     * Raise to strip lower level calls from the build, isLoggable() is then
+     * constant-folded by the optimizer.
+     */
+    public static final int MIN_LEVEL = VERBOSE;
+
+
+    private static volatile int sLevel = WARN;
+    private static volatile LogSink sSink = new AndroidLogSink();
+
+
+    private MediaLog() {
+    }
+
+    /**
+     * Messages below level are dropped, WARN by default.
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * Pass null to drop all messages.
+     */
+    public static void setSink(LogSink sink) {
+        sSink = sink;
+    }
+
+    public static LogSink getSink() {
+        return sSink;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= MIN_LEVEL && level >= sLevel && sSink != null;
+    }
+
+    public static void v(String tag, String message) {
+        if (isLoggable(VERBOSE)) {
+            log(VERBOSE, tag, message, null);
+        }
+    }
+
+    public static void d(String tag, String message) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, message, null);
+        }
+    }
+
+    public static void d(String tag, String format, long arg) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, String.format(format, arg), null);
+        }
+    }
+
+    public static void d(String tag, String format, long arg1, long arg2) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, String.format(format, arg1, arg2), null);
+        }
+    }
+
+    public static void d(String tag, String format, Object... args) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, String.format(format, args), null);
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (isLoggable(INFO)) {
+            log(INFO, tag, message, null);
+        }
+    }
+
+    public static void i(String tag, String format, Object... args) {
+        if (isLoggable(INFO)) {
+            log(INFO, tag, String.format(format, args), null);
+        }
+    }
+
+    public static void w(String tag, String message) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, message, null);
+        }
+    }
+
+    public static void w(String tag, String message, Throwable tr) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, message, tr);
+        }
+    }
+
+    public static void e(String tag, String message) {
+        if (isLoggable(ERROR)) {
+            log(ERROR, tag, message, null);
+        }
+    }
+
+    public static void e(String tag, String message, Throwable tr) {
+        if (isLoggable(ERROR)) {
+            log(ERROR, tag, message, tr);
+        }
+    }
+
+    private static void log(int level, String tag, String message, Throwable tr) {
+        LogSink sink = sSink;
+        if (sink != null) {
+            sink.log(level, tag, message, tr);
+        }
+    }
+}
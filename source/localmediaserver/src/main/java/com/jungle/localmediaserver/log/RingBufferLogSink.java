@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.log;
+
+/*
+ * Queue log messages in a fixed-size ring, a background thread passes them
+ * on to the target sink, so logging threads never wait on logcat I/O.
+ *
+ *      log() -> [e][e][e][ ][ ] -> drain thread -> target.log()
+ *
+ * Entries are preallocated and reused. When the ring is full the oldest
+ * message is overwritten and counted as dropped.
+ */
+public class RingBufferLogSink implements LogSink {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+
+    private LogSink mTarget;
+    private Entry[] mEntries;
+    private int mHead;
+    private int mCount;
+    private long mDroppedCount;
+    private Thread mDrainThread;
+    private volatile boolean mIsClosed = false;
+
+
+    public RingBufferLogSink(LogSink target) {
+        this(target, DEFAULT_CAPACITY);
+    }
+
+    public RingBufferLogSink(LogSink target, int capacity) {
+        mTarget = target;
+        mEntries = new Entry[Math.max(1, capacity)];
+        for (int i = 0; i < mEntries.length; ++i) {
+            mEntries[i] = new Entry();
+        }
+
+        mDrainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+
+        mDrainThread.setName(RingBufferLogSink.class.getSimpleName());
+        mDrainThread.setDaemon(true);
+        mDrainThread.start();
+    }
+
+    @Override
+    public synchronized void log(int level, String tag, String message, Throwable tr) {
+        if (mIsClosed) {
+            return;
+        }
+
+        if (mCount == mEntries.length) {
+            mHead = (mHead + 1) % mEntries.length;
+            --mCount;
+            ++mDroppedCount;
+        }
+
+        Entry entry = mEntries[(mHead + mCount) % mEntries.length];
+        entry.mLevel = level;
+        entry.mTag = tag;
+        entry.mMessage = message;
+        entry.mThrowable = tr;
+        ++mCount;
+
+        notify();
+    }
+
+    private void drain() {
+        int level;
+        String tag;
+        String message;
+        Throwable tr;
+
+        while (true) {
+            synchronized (this) {
+                while (mCount == 0 && !mIsClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (mCount == 0) {
+                    return;
+                }
+
+                Entry entry = mEntries[mHead];
+                level = entry.mLevel;
+                tag = entry.mTag;
+                message = entry.mMessage;
+                tr = entry.mThrowable;
+                entry.clear();
+
+                mHead = (mHead + 1) % mEntries.length;
+                --mCount;
+            }
+
+            mTarget.log(level, tag, message, tr);
+        }
+    }
+
+    /**
+     * Stop the drain thread after the queued messages are passed on.
+     */
+    public synchronized void close() {
+        mIsClosed = true;
+        notify();
+    }
+
+    /**
+     * Count of messages overwritten before they were drained.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+
+    private static class Entry {
+
+        private int mLevel;
+        private String mTag;
+        private String mMessage;
+        private Throwable mThrowable;
+
+        void clear() {
+            mTag = null;
+            mMessage = null;
+            mThrowable = null;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+import com.jungle.localmediaserver.FileUtils;
+import com.jungle.localmediaserver.stats.ServerStats;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * LRU cache of fixed-size file blocks keyed by block index (offset / blockSize),
+ * shared by all sessions of a provider.
+ *
+ * Blocks live in heap or direct ByteBuffers within the memory budget, evicted
+ * buffers are reused for new blocks, and clear() zero-fills every buffer so
+ * decrypted data does not linger in memory. Once released, reads miss and puts
+ * are dropped, so a late read-ahead or session can't refill it.
+ *
+ * Blocks put by the read-ahead stage stay marked until their first read, so
+ * hits on prefetched blocks can be told from other hits.
+ */
+public class BlockCache {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * FileUtils.KB;
+    public static final int DEFAULT_MEMORY_BUDGET = 4 * FileUtils.MB;
+
+    private static final byte[] ZEROS = new byte[4 * FileUtils.KB];
+
+
+    private int mBlockSize;
+    private int mMaxBlockCount;
+    private boolean mUseDirectBuffer;
+    private LinkedHashMap<Long, ByteBuffer> mBlocks =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private ArrayDeque<ByteBuffer> mFreeBuffers = new ArrayDeque<>();
+    private HashSet<Long> mPrefetchedBlocks = new HashSet<>();
+    private boolean mIsReleased = false;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+
+    public BlockCache() {
+        this(DEFAULT_BLOCK_SIZE, DEFAULT_MEMORY_BUDGET, false);
+    }
+
+    /**
+     * @param memoryBudget max bytes of all cached blocks.
+     * @param useDirectBuffer keep blocks out of the Java heap.
+     */
+    public BlockCache(int blockSize, long memoryBudget, boolean useDirectBuffer) {
+        mBlockSize = blockSize;
+        mMaxBlockCount = (int) Math.max(1, memoryBudget / blockSize);
+        mUseDirectBuffer = useDirectBuffer;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public long getMemoryBudget() {
+        return (long) mMaxBlockCount * mBlockSize;
+    }
+
+    /**
+     * Check without counting a hit or miss, nor touching the LRU order.
+     */
+    public synchronized boolean contains(long blockIndex) {
+        return !mIsReleased && mBlocks.containsKey(blockIndex);
+    }
+
+    /**
+     * Copy cached data of block at blockIndex, starting at offsetInBlock.
+     *
+     * @return count of bytes copied (less than count at the end of file),
+     * -1 if the block is not cached.
+     */
+    public int read(long blockIndex, int offsetInBlock, byte[] buffer, int offset, int count) {
+        return read(blockIndex, offsetInBlock, buffer, offset, count, null);
+    }
+
+    /**
+     * @param stats records the hit or miss, may be null.
+     */
+    synchronized int read(long blockIndex, int offsetInBlock,
+                          byte[] buffer, int offset, int count, ServerStats stats) {
+
+        ByteBuffer block = mIsReleased ? null : mBlocks.get(blockIndex);
+        if (stats != null) {
+            stats.onCacheRead(block != null);
+        }
+
+        if (block == null) {
+            ++mMissCount;
+            return -1;
+        }
+
+        ++mHitCount;
+        if (!mPrefetchedBlocks.isEmpty() && mPrefetchedBlocks.remove(blockIndex)
+                && stats != null) {
+            stats.onPrefetchHit();
+        }
+
+        count = Math.max(0, Math.min(count, block.limit() - offsetInBlock));
+        if (count > 0) {
+            block.position(offsetInBlock);
+            block.get(buffer, offset, count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Cache data of block at blockIndex, count is less than the block size
+     * only for the last block of the file.
+     */
+    public void put(long blockIndex, byte[] data, int offset, int count) {
+        put(blockIndex, data, offset, count, false);
+    }
+
+    /**
+     * @param prefetched put by the read-ahead stage, not read yet.
+     */
+    synchronized void put(long blockIndex, byte[] data, int offset, int count,
+                          boolean prefetched) {
+
+        if (mIsReleased) {
+            return;
+        }
+
+        if (prefetched) {
+            mPrefetchedBlocks.add(blockIndex);
+        } else {
+            mPrefetchedBlocks.remove(blockIndex);
+        }
+
+        ByteBuffer block = mBlocks.get(blockIndex);
+        if (block == null) {
+            block = obtainBuffer();
+            mBlocks.put(blockIndex, block);
+        }
+
+        block.clear();
+        block.put(data, offset, Math.min(count, mBlockSize));
+        block.flip();
+    }
+
+    private ByteBuffer obtainBuffer() {
+        if (mBlocks.size() >= mMaxBlockCount) {
+            Iterator<Map.Entry<Long, ByteBuffer>> iterator = mBlocks.entrySet().iterator();
+            Map.Entry<Long, ByteBuffer> eldest = iterator.next();
+            mPrefetchedBlocks.remove(eldest.getKey());
+            iterator.remove();
+            ++mEvictionCount;
+            return eldest.getValue();
+        }
+
+        ByteBuffer buffer = mFreeBuffers.pollFirst();
+        if (buffer != null) {
+            return buffer;
+        }
+
+        return mUseDirectBuffer
+                ? ByteBuffer.allocateDirect(mBlockSize)
+                : ByteBuffer.allocate(mBlockSize);
+    }
+
+    /**
+     * Drop all blocks, zero-filling their buffers.
+     */
+    public synchronized void clear() {
+        for (ByteBuffer block : mBlocks.values()) {
+            wipe(block);
+            mFreeBuffers.addLast(block);
+        }
+
+        mBlocks.clear();
+        mPrefetchedBlocks.clear();
+    }
+
+    /**
+     * Drop all blocks and release their memory, the cache stays empty after.
+     */
+    public synchronized void release() {
+        mIsReleased = true;
+        clear();
+        mFreeBuffers.clear();
+    }
+
+    private static void wipe(ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
+        }
+
+        buffer.clear();
+    }
+
+    public synchronized int getBlockCount() {
+        return mBlocks.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+}
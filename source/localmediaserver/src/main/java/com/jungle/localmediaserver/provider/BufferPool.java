@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Idle byte arrays of one provider, reused by its sessions & worker threads.
+ *
+ *      obtain() --> [ send loop / block load / parallel task ] --> recycle()
+ *                                                                     |
+ *              idle (at most maxIdleCount) <--------------------------+
+ *                                                                     |
+ *              zero-filled & dropped  <---- pool full, or released ---+
+ *
+ * Buffers hold decrypted data, so they are not kept per thread: engine threads
+ * outlive providers. release() zero-fills the idle buffers, and buffers given
+ * back after it are zero-filled too.
+ */
+class BufferPool {
+
+    private int mMaxIdleCount;
+    private ArrayList<byte[]> mIdleBuffers = new ArrayList<>();
+    private boolean mIsReleased = false;
+
+
+    BufferPool(int maxIdleCount) {
+        mMaxIdleCount = maxIdleCount;
+    }
+
+    /**
+     * @return the smallest idle buffer of at least size bytes, or a new one.
+     */
+    byte[] obtain(int size) {
+        synchronized (this) {
+            int best = -1;
+            for (int i = 0; i < mIdleBuffers.size(); ++i) {
+                int length = mIdleBuffers.get(i).length;
+                if (length >= size && (best < 0 || length < mIdleBuffers.get(best).length)) {
+                    best = i;
+                }
+            }
+
+            if (best >= 0) {
+                return mIdleBuffers.remove(best);
+            }
+        }
+
+        return new byte[size];
+    }
+
+    void recycle(byte[] buffer) {
+        synchronized (this) {
+            if (!mIsReleased && mIdleBuffers.size() < mMaxIdleCount) {
+                mIdleBuffers.add(buffer);
+                return;
+            }
+        }
+
+        Arrays.fill(buffer, (byte) 0);
+    }
+
+    /**
+     * Zero-fill and drop the idle buffers, later ones are dropped when recycled.
+     */
+    void release() {
+        ArrayList<byte[]> buffers;
+        synchronized (this) {
+            mIsReleased = true;
+            buffers = mIdleBuffers;
+            mIdleBuffers = new ArrayList<>();
+        }
+
+        for (byte[] buffer : buffers) {
+            Arrays.fill(buffer, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+import com.jungle.localmediaserver.FileUtils;
+import com.jungle.localmediaserver.ServerHttpSession;
+import com.jungle.localmediaserver.log.MediaLog;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Seekable encrypted file: the plain data is cut in fixed-size chunks, each
+ * encrypted on its own, so ciphers may pad or authenticate them.
+ *
+ *      | header | chunk 0 | chunk 1 | ... | chunk n-1 | chunk table | trailer |
+ *
+ *      header       magic "LMSC", version, plain chunk size          (12 bytes)
+ *      chunk table  encrypted length of each chunk                   (4 bytes each)
+ *      trailer      table offset, chunk count, plain length, magic   (24 bytes)
+ *
+ * Integers are big-endian. Chunk i holds the plain bytes from i * chunkSize,
+ * all chunks are full but the last one. The table follows the chunks, so the
+ * writer streams the file in one pass; readers find it from the trailer.
+ */
+public class ChunkedContainer {
+
+    public static final int MAGIC = 0x4C4D5343;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 12;
+    public static final int TRAILER_SIZE = 24;
+    public static final int DEFAULT_CHUNK_SIZE = 64 * FileUtils.KB;
+
+
+    private int mChunkSize;
+    private long mPlainLength;
+    private long[] mChunkOffsets;
+    private int mMaxChunkLength;
+
+
+    private ChunkedContainer(int chunkSize, long plainLength, long[] chunkOffsets) {
+        mChunkSize = chunkSize;
+        mPlainLength = plainLength;
+        mChunkOffsets = chunkOffsets;
+        for (int i = 1; i < chunkOffsets.length; ++i) {
+            mMaxChunkLength = (int) Math.max(
+                    mMaxChunkLength, chunkOffsets[i] - chunkOffsets[i - 1]);
+        }
+    }
+
+    /**
+     * Read the header & chunk table of the container at filePath.
+     *
+     * @return null if the file is missing or is not a valid container.
+     */
+    public static ChunkedContainer read(String filePath) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(filePath, "r");
+            return read(file.getChannel());
+        } catch (IOException e) {
+            MediaLog.e(ServerHttpSession.TAG, "Read Chunked Container FAILED!", e);
+            return null;
+        } finally {
+            FileUtils.closeStream(file);
+        }
+    }
+
+    private static ChunkedContainer read(FileChannel channel) throws IOException {
+        long fileLength = channel.size();
+        if (fileLength < HEADER_SIZE + TRAILER_SIZE) {
+            throw new IOException("Not a Chunked Container!");
+        }
+
+        ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+        int magic = header.getInt();
+        int version = header.getInt();
+        int chunkSize = header.getInt();
+
+        ByteBuffer trailer = readFully(channel, fileLength - TRAILER_SIZE, TRAILER_SIZE);
+        long tableOffset = trailer.getLong();
+        int chunkCount = trailer.getInt();
+        long plainLength = trailer.getLong();
+
+        if (magic != MAGIC || trailer.getInt() != MAGIC) {
+            throw new IOException("Not a Chunked Container!");
+        }
+
+        if (version != VERSION) {
+            throw new IOException("Unsupported Chunked Container Version " + version);
+        }
+
+        long tableEnd = tableOffset + 4L * chunkCount;
+        if (chunkSize <= 0 || chunkCount < 0 || tableOffset < HEADER_SIZE
+                || tableEnd != fileLength - TRAILER_SIZE
+                || (plainLength + chunkSize - 1) / chunkSize != chunkCount) {
+            throw new IOException("Corrupted Chunked Container!");
+        }
+
+        IntBuffer table = readFully(channel, tableOffset, 4 * chunkCount).asIntBuffer();
+        long[] chunkOffsets = new long[chunkCount + 1];
+        chunkOffsets[0] = HEADER_SIZE;
+        for (int i = 0; i < chunkCount; ++i) {
+            int length = table.get();
+            if (length <= 0) {
+                throw new IOException("Corrupted Chunked Container!");
+            }
+
+            chunkOffsets[i + 1] = chunkOffsets[i] + length;
+        }
+
+        if (chunkOffsets[chunkCount] != tableOffset) {
+            throw new IOException("Corrupted Chunked Container!");
+        }
+
+        return new ChunkedContainer(chunkSize, plainLength, chunkOffsets);
+    }
+
+    private static ByteBuffer readFully(
+            FileChannel channel, long position, int count) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected End of Chunked Container!");
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Plain bytes per chunk, all chunks are full but the last one.
+     */
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public long getPlainLength() {
+        return mPlainLength;
+    }
+
+    public int getChunkCount() {
+        return mChunkOffsets.length - 1;
+    }
+
+    /**
+     * @return file offset of the encrypted chunk.
+     */
+    public long getChunkOffset(int chunkIndex) {
+        return mChunkOffsets[chunkIndex];
+    }
+
+    /**
+     * @return encrypted length of the chunk.
+     */
+    public int getChunkLength(int chunkIndex) {
+        return (int) (mChunkOffsets[chunkIndex + 1] - mChunkOffsets[chunkIndex]);
+    }
+
+    public int getMaxChunkLength() {
+        return mMaxChunkLength;
+    }
+
+    /**
+     * @return index of the chunk holding the plain byte at position.
+     */
+    public int getChunkIndex(long position) {
+        return (int) (position / mChunkSize);
+    }
+}
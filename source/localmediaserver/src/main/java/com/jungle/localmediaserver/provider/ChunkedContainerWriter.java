@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+import com.jungle.localmediaserver.FileUtils;
+import com.jungle.localmediaserver.ServerHttpSession;
+import com.jungle.localmediaserver.encryptor.ChunkEncryptor;
+import com.jungle.localmediaserver.encryptor.ChunkEncryptorAdapter;
+import com.jungle.localmediaserver.encryptor.Encryptor;
+import com.jungle.localmediaserver.log.MediaLog;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * Write a ChunkedContainer in one pass, e.g. while downloading:
+ *
+ *      plain data --write()--> chunk buffer --(full)--> encryptChunk() --> stream
+ *      close()    --> last chunk, chunk table & trailer
+ *
+ * Lengths of the encrypted chunks are kept in memory until close(), 4 bytes
+ * per chunk.
+ */
+public class ChunkedContainerWriter implements Closeable {
+
+    private DataOutputStream mStream;
+    private ChunkEncryptor mEncryptor;
+    private byte[] mEncryptKey;
+    private byte[] mChunk;
+    private int mChunkFilled;
+    private long mPlainLength;
+    private long mTableOffset = ChunkedContainer.HEADER_SIZE;
+    private int[] mChunkLengths = new int[16];
+    private int mChunkCount;
+    private boolean mIsClosed = false;
+
+
+    public ChunkedContainerWriter(OutputStream stream, Encryptor encryptor,
+                                  byte[] encryptKey, int chunkSize) throws IOException {
+
+        this(stream, new ChunkEncryptorAdapter(encryptor), encryptKey, chunkSize);
+    }
+
+    /**
+     * @param chunkSize plain bytes per chunk, see ChunkedContainer.DEFAULT_CHUNK_SIZE.
+     */
+    public ChunkedContainerWriter(OutputStream stream, ChunkEncryptor encryptor,
+                                  byte[] encryptKey, int chunkSize) throws IOException {
+
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive!");
+        }
+
+        mStream = new DataOutputStream(stream);
+        mEncryptor = encryptor;
+        mEncryptKey = encryptKey;
+        mChunk = new byte[chunkSize];
+
+        mStream.writeInt(ChunkedContainer.MAGIC);
+        mStream.writeInt(ChunkedContainer.VERSION);
+        mStream.writeInt(chunkSize);
+    }
+
+    /**
+     * Encrypt the file at plainPath into a container at containerPath.
+     *
+     * @return false if failed, the container is left incomplete then.
+     */
+    public static boolean encryptFile(String plainPath, String containerPath,
+                                      ChunkEncryptor encryptor, byte[] encryptKey,
+                                      int chunkSize) {
+
+        InputStream input = null;
+        ChunkedContainerWriter writer = null;
+        try {
+            input = new FileInputStream(plainPath);
+            writer = new ChunkedContainerWriter(
+                    new BufferedOutputStream(new FileOutputStream(containerPath)),
+                    encryptor, encryptKey, chunkSize);
+
+            byte[] buffer = new byte[chunkSize];
+            int count;
+            while ((count = input.read(buffer)) > 0) {
+                writer.write(buffer, 0, count);
+            }
+
+            writer.close();
+            writer = null;
+            return true;
+        } catch (IOException e) {
+            MediaLog.e(ServerHttpSession.TAG, "Write Chunked Container FAILED!", e);
+            return false;
+        } finally {
+            FileUtils.closeStream(input);
+            if (writer != null) {
+                // No trailer, readers reject the incomplete container.
+                FileUtils.closeStream(writer.mStream);
+            }
+        }
+    }
+
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        if (mIsClosed) {
+            throw new IOException("Writer Closed!");
+        }
+
+        while (count > 0) {
+            int length = Math.min(count, mChunk.length - mChunkFilled);
+            System.arraycopy(buffer, offset, mChunk, mChunkFilled, length);
+            mChunkFilled += length;
+            mPlainLength += length;
+            offset += length;
+            count -= length;
+
+            if (mChunkFilled == mChunk.length) {
+                flushChunk();
+            }
+        }
+    }
+
+    /**
+     * Write the last chunk, the chunk table & the trailer, then close the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mIsClosed) {
+            return;
+        }
+
+        mIsClosed = true;
+        try {
+            if (mChunkFilled > 0) {
+                flushChunk();
+            }
+
+            for (int i = 0; i < mChunkCount; ++i) {
+                mStream.writeInt(mChunkLengths[i]);
+            }
+
+            mStream.writeLong(mTableOffset);
+            mStream.writeInt(mChunkCount);
+            mStream.writeLong(mPlainLength);
+            mStream.writeInt(ChunkedContainer.MAGIC);
+            mStream.flush();
+        } finally {
+            mStream.close();
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        byte[] encrypted = mEncryptor.encryptChunk(
+                mChunkCount, mChunk, 0, mChunkFilled, mEncryptKey);
+        if (encrypted == null || encrypted.length == 0) {
+            throw new IOException("Encrypt Chunk FAILED!");
+        }
+
+        mStream.write(encrypted);
+        if (mChunkCount == mChunkLengths.length) {
+            int[] chunkLengths = new int[2 * mChunkCount];
+            System.arraycopy(mChunkLengths, 0, chunkLengths, 0, mChunkCount);
+            mChunkLengths = chunkLengths;
+        }
+
+        mChunkLengths[mChunkCount++] = encrypted.length;
+        mTableOffset += encrypted.length;
+        mChunkFilled = 0;
+    }
+}
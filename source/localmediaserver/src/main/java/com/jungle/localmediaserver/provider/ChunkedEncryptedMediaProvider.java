@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+import com.jungle.localmediaserver.encryptor.ChunkEncryptor;
+import com.jungle.localmediaserver.encryptor.ChunkEncryptorAdapter;
+import com.jungle.localmediaserver.encryptor.Encryptor;
+import com.jungle.localmediaserver.stats.ServerStats;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Serve the plain data of a ChunkedContainer, see ChunkedContainerWriter.
+ *
+ * A plain range is mapped to the chunks covering it with the chunk table, only
+ * those are read & decrypted:
+ *
+ *      plain       |<- chunk 0 ->|<- chunk 1 ->|<- chunk 2 ->|<- chunk 3 ->|
+ *                                     |<-- requested range -->|
+ *      file    | header | chunk 0 |  chunk 1  | chunk 2 | chunk 3 | table | trailer |
+ *                                 |<-- read & decrypted -->|
+ *
+ * Content length is the plain length. The last chunks decrypted are kept in a
+ * few idle buffers, zero-filled by clean(), so reads not aligned to chunks
+ * decrypt each chunk once. With a BlockCache set, blocks are whole chunks,
+ * decrypted once for all sessions; with parallel decrypt enabled, large ranges
+ * are decrypted on all cores.
+ */
+public class ChunkedEncryptedMediaProvider extends RawFileMediaProvider {
+
+    /**
+     * Enough for the sessions & parallel decrypt tasks reading at a time.
+     */
+    private static final int MAX_IDLE_CHUNK_BUFFERS =
+            Math.max(2, Runtime.getRuntime().availableProcessors());
+
+
+    private ChunkedContainer mContainer;
+    private ChunkEncryptor mEncryptor;
+    private byte[] mEncryptKey;
+    private boolean mParallelDecryptEnabled = false;
+    private final ArrayList<ChunkBuffer> mIdleChunkBuffers = new ArrayList<>();
+    private boolean mIsCleaned = false;
+
+
+    public ChunkedEncryptedMediaProvider(
+            String filePath, Encryptor encryptor, byte[] encryptKey) {
+
+        this(filePath, new ChunkEncryptorAdapter(encryptor), encryptKey);
+    }
+
+    public ChunkedEncryptedMediaProvider(
+            String filePath, ChunkEncryptor encryptor, byte[] encryptKey) {
+
+        super(filePath);
+        mEncryptor = encryptor;
+        mEncryptKey = encryptKey;
+        mContainer = ChunkedContainer.read(filePath);
+        mContentLength = mContainer != null ? mContainer.getPlainLength() : 0;
+    }
+
+    @Override
+    public void clean() {
+        super.clean();
+        mEncryptKey = null;
+        mEncryptor = null;
+
+        ChunkBuffer[] chunks;
+        synchronized (mIdleChunkBuffers) {
+            mIsCleaned = true;
+            chunks = mIdleChunkBuffers.toArray(new ChunkBuffer[mIdleChunkBuffers.size()]);
+            mIdleChunkBuffers.clear();
+        }
+
+        for (ChunkBuffer chunk : chunks) {
+            chunk.wipe();
+        }
+    }
+
+    /**
+     * @return index of the container, null if the file is not a valid container.
+     */
+    public ChunkedContainer getContainer() {
+        return mContainer;
+    }
+
+    /**
+     * Cache decrypted chunks, the cache block size must be a multiple of the
+     * chunk size. Pass null to disable caching.
+     */
+    @Override
+    public void setBlockCache(BlockCache blockCache) {
+        if (blockCache != null && mContainer != null
+                && blockCache.getBlockSize() % mContainer.getChunkSize() != 0) {
+            throw new IllegalArgumentException(
+                    "Cache block size must be a multiple of chunk size!");
+        }
+
+        super.setBlockCache(blockCache);
+    }
+
+    /**
+     * Decrypt ranges larger than PARALLEL_THRESHOLD on all cores, chunks are
+     * decrypted independently.
+     */
+    public void setParallelDecryptEnabled(boolean enabled) {
+        mParallelDecryptEnabled = enabled;
+    }
+
+    public boolean isParallelDecryptEnabled() {
+        return mParallelDecryptEnabled;
+    }
+
+    @Override
+    protected boolean canTransferRawData() {
+        return false;
+    }
+
+    @Override
+    protected int sendVideoDataInternal(OutputStream stream,
+            long start, long length, MediaTransfer transfer) throws IOException {
+
+        if (mParallelDecryptEnabled && mContainer != null && length >= PARALLEL_THRESHOLD) {
+            return sendVideoDataParallel(
+                    stream, start, length, mContainer.getChunkSize(), transfer);
+        }
+
+        return super.sendVideoDataInternal(stream, start, length, transfer);
+    }
+
+    /**
+     * Read plain data at any position, decrypting the chunks covering it.
+     */
+    @Override
+    protected int readDirectly(
+            long position, byte[] buffer, int offset, int count) throws IOException {
+
+        ChunkedContainer container = mContainer;
+        if (container == null) {
+            throw new IOException("Not a Chunked Container!");
+        }
+
+        final long chunkSize = container.getChunkSize();
+        int total = 0;
+        while (count > 0 && position < mContentLength) {
+            int chunkIndex = container.getChunkIndex(position);
+            int offsetInChunk = (int) (position - chunkIndex * chunkSize);
+            int length;
+
+            ChunkBuffer chunk = obtainChunkBuffer(container, chunkIndex);
+            try {
+                decryptChunk(container, chunkIndex, chunk);
+                length = Math.min(count, chunk.mLength - offsetInChunk);
+                if (length <= 0) {
+                    throw new IOException("Corrupted Chunk " + chunkIndex);
+                }
+
+                System.arraycopy(chunk.mPlain, offsetInChunk, buffer, offset, length);
+            } finally {
+                recycleChunkBuffer(chunk);
+            }
+
+            total += length;
+            position += length;
+            offset += length;
+            count -= length;
+        }
+
+        return total > 0 ? total : -1;
+    }
+
+    /**
+     * @return an idle buffer, holding chunkIndex already if possible.
+     */
+    private ChunkBuffer obtainChunkBuffer(ChunkedContainer container, int chunkIndex) {
+        synchronized (mIdleChunkBuffers) {
+            int size = mIdleChunkBuffers.size();
+            for (int i = size - 1; i >= 0; --i) {
+                if (mIdleChunkBuffers.get(i).mIndex == chunkIndex) {
+                    return mIdleChunkBuffers.remove(i);
+                }
+            }
+
+            if (size > 0) {
+                return mIdleChunkBuffers.remove(0);
+            }
+        }
+
+        return new ChunkBuffer(container);
+    }
+
+    private void recycleChunkBuffer(ChunkBuffer chunk) {
+        synchronized (mIdleChunkBuffers) {
+            if (!mIsCleaned && mIdleChunkBuffers.size() < MAX_IDLE_CHUNK_BUFFERS) {
+                mIdleChunkBuffers.add(chunk);
+                return;
+            }
+        }
+
+        chunk.wipe();
+    }
+
+    /**
+     * Decrypt the chunk into the buffer, unless it holds the chunk already.
+     */
+    private void decryptChunk(ChunkedContainer container,
+            int chunkIndex, ChunkBuffer chunk) throws IOException {
+
+        if (chunk.mIndex == chunkIndex) {
+            return;
+        }
+
+        // Invalid until decrypted, a failed chunk is not reused.
+        chunk.mIndex = -1;
+        int encryptedLength = container.getChunkLength(chunkIndex);
+        long chunkOffset = container.getChunkOffset(chunkIndex);
+        int read = 0;
+        while (read < encryptedLength) {
+            int count = super.readDirectly(chunkOffset + read,
+                    chunk.mEncrypted, read, encryptedLength - read);
+            if (count <= 0) {
+                throw new EOFException("Chunk " + chunkIndex + " Truncated!");
+            }
+
+            read += count;
+        }
+
+        ServerStats stats = mStats;
+        long startTime = stats != null ? System.nanoTime() : 0;
+        int length = mEncryptor.decryptChunk(chunkIndex, chunk.mEncrypted, 0,
+                encryptedLength, chunk.mPlain, 0, mEncryptKey);
+        if (stats != null) {
+            stats.onProviderDecrypt(length, System.nanoTime() - startTime);
+        }
+
+        if (length < 0 || length > container.getChunkSize()) {
+            throw new IOException("Decrypt Chunk " + chunkIndex + " FAILED!");
+        }
+
+        chunk.mIndex = chunkIndex;
+        chunk.mLength = length;
+    }
+
+
+    private static class ChunkBuffer {
+
+        private int mIndex = -1;
+        private int mLength;
+        private byte[] mEncrypted;
+        private byte[] mPlain;
+
+        ChunkBuffer(ChunkedContainer container) {
+            mEncrypted = new byte[container.getMaxChunkLength()];
+
+            // Ciphers may need room for the padding while decrypting.
+            mPlain = new byte[Math.max(container.getChunkSize(), mEncrypted.length)];
+        }
+
+        /**
+         * Zero-fill the plain data, before the buffer is dropped.
+         */
+        void wipe() {
+            mIndex = -1;
+            Arrays.fill(mPlain, (byte) 0);
+        }
+    }
+}
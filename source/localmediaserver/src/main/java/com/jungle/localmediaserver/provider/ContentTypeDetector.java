@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+/*
+ * Guess the content type of media from its first bytes.
+ *
+ *      ....ftyp[brand]     MP4 / QuickTime / 3GP / M4A
+ *      1A 45 DF A3         Matroska, WebM if its DocType says so
+ *      47 .. (188) 47      MPEG-TS
+ *      00 00 01 BA         MPEG-PS
+ *      FLV / OggS / fLaC   FLV / Ogg / FLAC
+ *      RIFF....AVI         AVI, WAV for RIFF....WAVE
+ *      ID3 / FF Fx         MP3, AAC (ADTS)
+ *      #EXTM3U             HLS playlist
+ */
+public class ContentTypeDetector {
+
+    /**
+     * Bytes needed from the start of the content.
+     */
+    public static final int HEADER_SIZE = 256;
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_SYNC_BYTE = 0x47;
+
+
+    /**
+     * @return the content type, null if not recognized.
+     */
+    public static String detect(byte[] header, int count) {
+        if (count >= 12 && matches(header, count, 4, "ftyp")) {
+            return detectFtyp(header, count);
+        }
+
+        if (count >= 8 && (matches(header, count, 4, "moov")
+                || matches(header, count, 4, "mdat") || matches(header, count, 4, "wide")
+                || matches(header, count, 4, "free") || matches(header, count, 4, "skip"))) {
+            return "video/mp4";
+        }
+
+        if (count >= 4 && (header[0] & 0xff) == 0x1a && (header[1] & 0xff) == 0x45
+                && (header[2] & 0xff) == 0xdf && (header[3] & 0xff) == 0xa3) {
+            return indexOf(header, count, "webm") >= 0 ? "video/webm" : "video/x-matroska";
+        }
+
+        if (count > TS_PACKET_SIZE && (header[0] & 0xff) == TS_SYNC_BYTE
+                && (header[TS_PACKET_SIZE] & 0xff) == TS_SYNC_BYTE) {
+            return "video/mp2t";
+        }
+
+        if (count >= 4 && header[0] == 0 && header[1] == 0
+                && header[2] == 1 && (header[3] & 0xff) == 0xba) {
+            return "video/mpeg";
+        }
+
+        if (matches(header, count, 0, "FLV")) {
+            return "video/x-flv";
+        }
+
+        if (matches(header, count, 0, "OggS")) {
+            return "application/ogg";
+        }
+
+        if (matches(header, count, 0, "fLaC")) {
+            return "audio/flac";
+        }
+
+        if (matches(header, count, 0, "RIFF")) {
+            if (matches(header, count, 8, "AVI ")) {
+                return "video/x-msvideo";
+            }
+
+            if (matches(header, count, 8, "WAVE")) {
+                return "audio/wav";
+            }
+
+            return null;
+        }
+
+        if (matches(header, count, 0, "#EXTM3U")) {
+            return "application/vnd.apple.mpegurl";
+        }
+
+        if (matches(header, count, 0, "ID3")) {
+            return "audio/mpeg";
+        }
+
+        if (count >= 2 && (header[0] & 0xff) == 0xff && (header[1] & 0xe0) == 0xe0) {
+            // ADTS frames have layer 0, MPEG audio frames don't.
+            return (header[1] & 0x06) == 0 ? "audio/aac" : "audio/mpeg";
+        }
+
+        return null;
+    }
+
+    private static String detectFtyp(byte[] header, int count) {
+        if (matches(header, count, 8, "qt  ")) {
+            return "video/quicktime";
+        }
+
+        if (matches(header, count, 8, "3gp") || matches(header, count, 8, "3g2")) {
+            return "video/3gpp";
+        }
+
+        if (matches(header, count, 8, "M4A ") || matches(header, count, 8, "M4B ")) {
+            return "audio/mp4";
+        }
+
+        return "video/mp4";
+    }
+
+    private static boolean matches(byte[] header, int count, int offset, String magic) {
+        if (offset + magic.length() > count) {
+            return false;
+        }
+
+        for (int i = 0; i < magic.length(); ++i) {
+            if (header[offset + i] != magic.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int indexOf(byte[] header, int count, String magic) {
+        for (int i = 0; i + magic.length() <= count; ++i) {
+            if (matches(header, count, i, magic)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
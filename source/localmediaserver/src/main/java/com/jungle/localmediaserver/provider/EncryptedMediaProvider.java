@@ -8,18 +8,61 @@
 
 package com.jungle.localmediaserver.provider;
 
+import com.jungle.localmediaserver.encryptor.BufferEncryptor;
 import com.jungle.localmediaserver.encryptor.Encryptor;
+import com.jungle.localmediaserver.encryptor.EncryptorAdapter;
+import com.jungle.localmediaserver.encryptor.SeekableEncryptor;
+import com.jungle.localmediaserver.encryptor.SeekableEncryptorAdapter;
+import com.jungle.localmediaserver.stats.ServerStats;
 
 import java.io.IOException;
 import java.io.OutputStream;
 
+/*
+ * Decrypt file data while sending.
+ *
+ * Reads start at the cipher block containing the requested offset, so the
+ * encryptor always decrypts from a block boundary, and the leading bytes of
+ * that block are dropped from the output:
+ *
+ *      |<- block ->|<- block ->|<- block ->|
+ *             |<---- requested range ---->|
+ *      |skip->|
+ *
+ * With parallel decrypt enabled, large ranges are read & decrypted on a shared
+ * worker pool, see RawFileMediaProvider.sendVideoDataParallel().
+ *
+ * With a BlockCache set, decrypted blocks are shared by all sessions, so
+ * re-requested regions (moov atom, retries, overlapping ranges) skip the
+ * read & decrypt, and the read-ahead stage pre-decrypts the next window.
+ */
 public class EncryptedMediaProvider extends RawFileMediaProvider {
 
     private byte[] mEncryptKey;
-    private Encryptor mEncryptor;
+    private SeekableEncryptor mEncryptor;
+    private boolean mParallelDecryptEnabled = false;
 
 
     public EncryptedMediaProvider(String filePath, Encryptor encryptor, byte[] encryptKey) {
+        this(filePath, new EncryptorAdapter(encryptor), encryptKey);
+    }
+
+    /**
+     * Data is decrypted in place in the session's read buffer, no array is
+     * allocated per chunk.
+     */
+    public EncryptedMediaProvider(
+            String filePath, BufferEncryptor encryptor, byte[] encryptKey) {
+
+        this(filePath, new SeekableEncryptorAdapter(encryptor), encryptKey);
+    }
+
+    /**
+     * For ciphers depending on the file offset, e.g. AES-CTR.
+     */
+    public EncryptedMediaProvider(
+            String filePath, SeekableEncryptor encryptor, byte[] encryptKey) {
+
         super(filePath);
         mEncryptKey = encryptKey;
         mEncryptor = encryptor;
@@ -27,15 +70,128 @@ public class EncryptedMediaProvider extends RawFileMediaProvider {
 
     @Override
     public void clean() {
+        super.clean();
         mEncryptKey = null;
         mEncryptor = null;
     }
 
+    /**
+     * Cache decrypted blocks, the cache block size must be a multiple of
+     * the cipher block size. Pass null to disable caching.
+     */
+    @Override
+    public void setBlockCache(BlockCache blockCache) {
+        if (blockCache != null && blockCache.getBlockSize() % mEncryptor.getBlockSize() != 0) {
+            throw new IllegalArgumentException(
+                    "Cache block size must be a multiple of cipher block size!");
+        }
+
+        super.setBlockCache(blockCache);
+    }
+
+    /**
+     * Decrypt ranges larger than PARALLEL_THRESHOLD on all cores, useful for the
+     * initial buffering and big forward seeks of high bitrate media.
+     */
+    public void setParallelDecryptEnabled(boolean enabled) {
+        mParallelDecryptEnabled = enabled;
+    }
+
+    public boolean isParallelDecryptEnabled() {
+        return mParallelDecryptEnabled;
+    }
+
     @Override
-    protected void writeStream(
-            OutputStream stream, byte[] buffer, int start, int count) throws IOException {
+    protected boolean canTransferRawData() {
+        return false;
+    }
+
+    @Override
+    public int readVideoData(
+            long position, byte[] buffer, int offset, int count) throws IOException {
+
+        int skip = (int) (position % mEncryptor.getBlockSize());
+        if (skip == 0) {
+            return super.readVideoData(position, buffer, offset, count);
+        }
+
+        byte[] alignBuffer = obtainBuffer(count + skip);
+        try {
+            int alignedCount = readThroughCache(position - skip, alignBuffer, 0, count + skip);
+            if (alignedCount <= skip) {
+                return -1;
+            }
+
+            onDataRead(position - skip, alignedCount);
+            System.arraycopy(alignBuffer, skip, buffer, offset, alignedCount - skip);
+            return alignedCount - skip;
+        } finally {
+            recycleBuffer(alignBuffer);
+        }
+    }
+
+    /**
+     * @param position aligned to the cipher block size.
+     */
+    @Override
+    protected int readDirectly(
+            long position, byte[] buffer, int offset, int count) throws IOException {
+
+        count = super.readDirectly(position, buffer, offset, count);
+        if (count <= 0) {
+            return count;
+        }
+
+        ServerStats stats = mStats;
+        if (stats == null) {
+            return mEncryptor.decrypt(position, buffer, offset, count, buffer, offset, mEncryptKey);
+        }
+
+        long startTime = System.nanoTime();
+        count = mEncryptor.decrypt(position, buffer, offset, count, buffer, offset, mEncryptKey);
+        stats.onProviderDecrypt(count, System.nanoTime() - startTime);
+        return count;
+    }
+
+    @Override
+    protected int sendVideoDataInternal(OutputStream stream,
+            long start, long length, MediaTransfer transfer) throws IOException {
+
+        if (mParallelDecryptEnabled && length >= PARALLEL_THRESHOLD) {
+            return sendVideoDataParallel(
+                    stream, start, length, mEncryptor.getBlockSize(), transfer);
+        }
+
+        final int bufferSize = getSendBufferSize();
+        final byte[] buffer = obtainBuffer(bufferSize);
+        int skip = (int) (start % mEncryptor.getBlockSize());
+        long position = start - skip;
+
+        try {
+            int ioCount = 0;
+            int count = 0;
+            while (length > 0) {
+                transfer.checkCancelled();
+                count = readThroughCache(position, buffer, 0,
+                        (int) Math.min(length + skip, bufferSize));
+                if (count <= skip) {
+                    return ioCount;
+                }
+
+                ++ioCount;
+                transfer.onRead(count - skip);
+                onDataRead(position, count);
+                transfer.checkCancelled();
+                stream.write(buffer, skip, count - skip);
+                transfer.onSent(count - skip);
+                position += count;
+                length -= count - skip;
+                skip = 0;
+            }
 
-        byte[] decrypted = mEncryptor.decrypt(buffer, start, count, mEncryptKey);
-        stream.write(decrypted, 0, decrypted.length);
+            return ioCount;
+        } finally {
+            recycleBuffer(buffer);
+        }
     }
 }
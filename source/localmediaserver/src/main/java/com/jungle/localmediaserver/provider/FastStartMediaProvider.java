@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+import com.jungle.localmediaserver.FileUtils;
+import com.jungle.localmediaserver.ServerHttpSession;
+import com.jungle.localmediaserver.log.MediaLog;
+import com.jungle.localmediaserver.stats.ServerStats;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+/*
+ * Serve an MP4 whose moov atom sits at the end as if it was "faststart",
+ * without rewriting the file.
+ *
+ *      file      | ftyp |       mdat       | moov |
+ *      virtual   | ftyp | moov'|       mdat       |
+ *                        ^
+ *                        |-- in memory, stco / co64 chunk offsets shifted by moov size
+ *
+ * Players get the sample tables with the first response instead of probing the
+ * tail of the file and seeking back. The top-level boxes are parsed once, when
+ * the provider is created; ranges of the virtual file are translated to the
+ * source provider (raw or encrypted), so caching, read-ahead & zero-copy of the
+ * source still apply. Files already faststart, fragmented, still being written,
+ * or not MP4 are served as they are.
+ */
+public class FastStartMediaProvider extends MediaDataProvider {
+
+    private static final String TAG = ServerHttpSession.TAG;
+
+    /**
+     * Larger moov atoms are not held in memory, the file is served as it is.
+     */
+    private static final int MAX_MOOV_SIZE = 16 * FileUtils.MB;
+
+
+    private MediaDataProvider mSource;
+    private ArrayList<Segment> mSegments;
+
+
+    public FastStartMediaProvider(MediaDataProvider source) {
+        super(source.mFilePath);
+        mSource = source;
+
+        try {
+            mSegments = layout();
+        } catch (IOException e) {
+            MediaLog.e(TAG, "Parse MP4 FAILED! Served As It Is.", e);
+        }
+    }
+
+    public MediaDataProvider getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return whether the moov atom was moved to the front.
+     */
+    public boolean isRelocated() {
+        return mSegments != null;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mSource.getContentLength();
+    }
+
+    @Override
+    public long getAvailableLength() {
+        return mSegments != null ? mSource.getContentLength() : mSource.getAvailableLength();
+    }
+
+    @Override
+    public boolean waitForData(long position, DataListener listener) {
+        return mSegments == null && mSource.waitForData(position, listener);
+    }
+
+    @Override
+    public long getLastModified() {
+        return mSource.getLastModified();
+    }
+
+    /**
+     * The virtual file differs from the source, so does its validator.
+     */
+    @Override
+    public String getETag() {
+        String eTag = mSource.getETag();
+        if (mSegments == null || !eTag.endsWith("\"")) {
+            return eTag;
+        }
+
+        return eTag.substring(0, eTag.length() - 1) + "-faststart\"";
+    }
+
+    @Override
+    public int getMetadataVersion() {
+        return mSource.getMetadataVersion();
+    }
+
+    @Override
+    public String getContentType() {
+        return mSource.getContentType();
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+        mSource.setContentType(contentType);
+    }
+
+    @Override
+    public void setStats(ServerStats stats) {
+        super.setStats(stats);
+        mSource.setStats(stats);
+    }
+
+    @Override
+    public void clean() {
+        mSource.clean();
+    }
+
+    @Override
+    protected int sendVideoDataInternal(
+            OutputStream stream, long start, long length) throws IOException {
+
+        return sendVideoDataInternal(stream, null, start, length, new MediaTransfer());
+    }
+
+    @Override
+    protected int sendVideoDataInternal(
+            OutputStream stream, WritableByteChannel channel,
+            long start, long length, MediaTransfer transfer) throws IOException {
+
+        if (mSegments == null) {
+            return mSource.sendVideoDataInternal(stream, channel, start, length, transfer);
+        }
+
+        int ioCount = 0;
+        while (length > 0) {
+            Segment segment = findSegment(start);
+            long offset = start - segment.mStart;
+            long count = Math.min(length, segment.mLength - offset);
+
+            if (segment.mData != null) {
+                transfer.checkCancelled();
+                stream.write(segment.mData, (int) offset, (int) count);
+                transfer.onRead(count);
+                transfer.onSent(count);
+                ++ioCount;
+            } else {
+                ioCount += mSource.sendVideoDataInternal(stream, channel,
+                        segment.mSourceStart + offset, count, transfer);
+            }
+
+            start += count;
+            length -= count;
+        }
+
+        return ioCount;
+    }
+
+    @Override
+    public int readVideoData(
+            long position, byte[] buffer, int offset, int count) throws IOException {
+
+        if (mSegments == null) {
+            return mSource.readVideoData(position, buffer, offset, count);
+        }
+
+        if (position >= getContentLength()) {
+            return -1;
+        }
+
+        Segment segment = findSegment(position);
+        long offsetInSegment = position - segment.mStart;
+        count = (int) Math.min(count, segment.mLength - offsetInSegment);
+        if (segment.mData == null) {
+            return mSource.readVideoData(
+                    segment.mSourceStart + offsetInSegment, buffer, offset, count);
+        }
+
+        System.arraycopy(segment.mData, (int) offsetInSegment, buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public boolean canTransferVideoData() {
+        return mSource.canTransferVideoData();
+    }
+
+    @Override
+    public long transferVideoData(
+            WritableByteChannel channel, long position, long count) throws IOException {
+
+        if (mSegments == null) {
+            return mSource.transferVideoData(channel, position, count);
+        }
+
+        if (position >= getContentLength()) {
+            throw new EOFException();
+        }
+
+        Segment segment = findSegment(position);
+        long offset = position - segment.mStart;
+        count = Math.min(count, segment.mLength - offset);
+        if (segment.mData == null) {
+            return mSource.transferVideoData(channel, segment.mSourceStart + offset, count);
+        }
+
+        return channel.write(ByteBuffer.wrap(segment.mData, (int) offset, (int) count));
+    }
+
+    private Segment findSegment(long position) throws IOException {
+        for (Segment segment : mSegments) {
+            if (position < segment.mStart + segment.mLength) {
+                return segment;
+            }
+        }
+
+        throw new EOFException();
+    }
+
+    /**
+     * @return segments of the virtual file, null to serve the file as it is.
+     */
+    private ArrayList<Segment> layout() throws IOException {
+        final long length = mSource.getContentLength();
+        if (length <= 0 || mSource.getAvailableLength() < length) {
+            return null;
+        }
+
+        long mdatStart = -1;
+        long moovStart = -1;
+        long moovSize = 0;
+        int moovHeaderSize = 8;
+        long position = 0;
+        byte[] header = new byte[16];
+        while (position + 8 <= length) {
+            readFully(position, header, (int) Math.min(header.length, length - position));
+            long size = readUInt32(header, 0);
+            int type = readInt(header, 4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (position + 16 > length) {
+                    MediaLog.d(TAG, "Not a MP4 File, Served As It Is.");
+                    return null;
+                }
+
+                size = readLong(header, 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = length - position;
+            }
+
+            if (size < headerSize || size > length - position) {
+                MediaLog.d(TAG, "Not a MP4 File, Served As It Is.");
+                return null;
+            }
+
+            if (type == Box.MDAT && mdatStart < 0) {
+                mdatStart = position;
+            } else if (type == Box.MOOV && moovStart < 0) {
+                moovStart = position;
+                moovSize = size;
+                moovHeaderSize = headerSize;
+            }
+
+            position += size;
+        }
+
+        if (moovStart < 0 || mdatStart < 0 || moovStart < mdatStart) {
+            return null;
+        }
+
+        if (moovSize > MAX_MOOV_SIZE) {
+            MediaLog.w(TAG, "moov Too Large, Served As It Is.");
+            return null;
+        }
+
+        byte[] moov = new byte[(int) moovSize];
+        readFully(moovStart, moov, moov.length);
+        if (!shiftChunkOffsets(moov, moovHeaderSize, moov.length, mdatStart, moovStart, moovSize)) {
+            MediaLog.w(TAG, "Chunk Offsets Overflow, Served As It Is.");
+            return null;
+        }
+
+        // Boxes before the first mdat stay in front, moov follows them.
+        ArrayList<Segment> segments = new ArrayList<>();
+        segments.add(new Segment(0, mdatStart, 0, null));
+        segments.add(new Segment(mdatStart, moovSize, -1, moov));
+        segments.add(new Segment(mdatStart + moovSize, moovStart - mdatStart, mdatStart, null));
+        segments.add(new Segment(moovStart + moovSize,
+                length - moovStart - moovSize, moovStart + moovSize, null));
+
+        MediaLog.d(TAG, "moov Moved to Front, Size = %d.", moovSize);
+        return segments;
+    }
+
+    /**
+     * Add moovSize to the chunk offsets pointing into [moveStart, moveEnd), the
+     * range of the file moved behind moov. Boxes from start to end are children
+     * of moov, or of a container inside it.
+     *
+     * @return false if a 32 bits offset would overflow.
+     */
+    private static boolean shiftChunkOffsets(byte[] data, int start, int end,
+            long moveStart, long moveEnd, long moovSize) throws IOException {
+
+        int position = start;
+        while (position + 8 <= end) {
+            long size = readUInt32(data, position);
+            int type = readInt(data, position + 4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (position + 16 > end) {
+                    throw new IOException("Corrupted moov!");
+                }
+
+                size = readLong(data, position + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - position;
+            }
+
+            if (size < headerSize || size > end - position) {
+                throw new IOException("Corrupted moov!");
+            }
+
+            int boxEnd = (int) (position + size);
+            int payload = position + headerSize;
+            if (type == Box.TRAK || type == Box.MDIA || type == Box.MINF || type == Box.STBL) {
+                if (!shiftChunkOffsets(data, payload, boxEnd, moveStart, moveEnd, moovSize)) {
+                    return false;
+                }
+            } else if (type == Box.STCO || type == Box.CO64) {
+                // version & flags, entry count, entries.
+                if (payload + 8 > boxEnd) {
+                    throw new IOException("Corrupted Chunk Offset Table!");
+                }
+
+                int entrySize = type == Box.STCO ? 4 : 8;
+                long entryCount = readUInt32(data, payload + 4);
+                int entry = payload + 8;
+                if (entry + entryCount * entrySize > boxEnd) {
+                    throw new IOException("Corrupted Chunk Offset Table!");
+                }
+
+                for (long i = 0; i < entryCount; ++i, entry += entrySize) {
+                    long offset = entrySize == 4 ? readUInt32(data, entry) : readLong(data, entry);
+                    if (offset < moveStart || offset >= moveEnd) {
+                        continue;
+                    }
+
+                    offset += moovSize;
+                    if (entrySize == 4) {
+                        if (offset > 0xffffffffL) {
+                            return false;
+                        }
+
+                        writeInt(data, entry, (int) offset);
+                    } else {
+                        writeInt(data, entry, (int) (offset >>> 32));
+                        writeInt(data, entry + 4, (int) offset);
+                    }
+                }
+            }
+
+            position = boxEnd;
+        }
+
+        return true;
+    }
+
+    private void readFully(long position, byte[] buffer, int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            int read = mSource.readVideoData(position + offset, buffer, offset, count - offset);
+            if (read <= 0) {
+                throw new EOFException();
+            }
+
+            offset += read;
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static long readUInt32(byte[] data, int offset) {
+        return readInt(data, offset) & 0xffffffffL;
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return (readUInt32(data, offset) << 32) | readUInt32(data, offset + 4);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+
+    /**
+     * Box types, the 4 ASCII chars as a big-endian int.
+     */
+    private static class Box {
+        static final int MOOV = 0x6d6f6f76;
+        static final int MDAT = 0x6d646174;
+        static final int TRAK = 0x7472616b;
+        static final int MDIA = 0x6d646961;
+        static final int MINF = 0x6d696e66;
+        static final int STBL = 0x7374626c;
+        static final int STCO = 0x7374636f;
+        static final int CO64 = 0x636f3634;
+    }
+
+
+    /**
+     * Range of the virtual file, from the source at mSourceStart, or from mData.
+     */
+    private static class Segment {
+
+        private long mStart;
+        private long mLength;
+        private long mSourceStart;
+        private byte[] mData;
+
+        Segment(long start, long length, long sourceStart, byte[] data) {
+            mStart = start;
+            mLength = length;
+            mSourceStart = sourceStart;
+            mData = data;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+import com.jungle.localmediaserver.FileUtils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/*
+ * Pool of open read-only FileChannels of one file, shared by all sessions of a provider.
+ *
+ * Channels are only used with positional reads & transfers, so no seek state
+ * is shared between users. Released channels are kept open for the next range
+ * request (up to MAX_IDLE_CHANNELS), and all of them are closed by close().
+ */
+public class FileHandlePool {
+
+    private static final int MAX_IDLE_CHANNELS = 4;
+
+
+    private String mFilePath;
+    private ArrayDeque<FileChannel> mIdleChannels = new ArrayDeque<>();
+    private int mOpenCount;
+    private long mOpenedCount;
+    private long mReuseCount;
+    private boolean mIsClosed = false;
+
+
+    public FileHandlePool(String filePath) {
+        mFilePath = filePath;
+    }
+
+    public FileChannel acquire() throws IOException {
+        synchronized (this) {
+            FileChannel channel = mIdleChannels.pollFirst();
+            if (channel != null) {
+                ++mReuseCount;
+                return channel;
+            }
+
+            ++mOpenCount;
+            ++mOpenedCount;
+        }
+
+        try {
+            return new RandomAccessFile(mFilePath, "r").getChannel();
+        } catch (IOException e) {
+            synchronized (this) {
+                --mOpenCount;
+            }
+
+            throw e;
+        }
+    }
+
+    public void release(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!mIsClosed && channel.isOpen() && mIdleChannels.size() < MAX_IDLE_CHANNELS) {
+                mIdleChannels.offerFirst(channel);
+                return;
+            }
+
+            --mOpenCount;
+        }
+
+        FileUtils.closeStream(channel);
+    }
+
+    /**
+     * Close idle channels, channels still in use are closed when released.
+     */
+    public void close() {
+        ArrayDeque<FileChannel> channels;
+        synchronized (this) {
+            mIsClosed = true;
+            channels = mIdleChannels;
+            mIdleChannels = new ArrayDeque<>();
+            mOpenCount -= channels.size();
+        }
+
+        for (FileChannel channel : channels) {
+            FileUtils.closeStream(channel);
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return mIsClosed;
+    }
+
+    /**
+     * Count of channels open right now, idle or in use.
+     */
+    public synchronized int getOpenCount() {
+        return mOpenCount;
+    }
+
+    /**
+     * Count of channels opened since created, i.e. pool misses.
+     */
+    public synchronized long getOpenedCount() {
+        return mOpenedCount;
+    }
+
+    /**
+     * Count of acquires served by an already open channel.
+     */
+    public synchronized long getReuseCount() {
+        return mReuseCount;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Serve a file while it is still being written (download, recording).
+ *
+ *      |<------- written ------->|<-------- being written -------->|
+ *      0                  getAvailableLength()      expected total length
+ *                                ^
+ *      writer: onDataWritten() --|--> wakes blocked sends & parked sessions
+ *
+ * Responses announce the expected total length, so players can seek and
+ * request ranges before the file is complete. Bytes not written yet are
+ * waited for: blocking sessions wait in the send loop, non-blocking ones park
+ * with waitForData() and are woken by the writer, no polling. Writers call
+ * onDataWritten() as data is flushed to the file, then onWriteFinished() (or
+ * onWriteFailed()).
+ *
+ * Blocks are only cached, and read ahead, once they are completely written.
+ * Memory mapping needs the whole file, it may be enabled once finished.
+ */
+public class GrowingFileMediaProvider extends RawFileMediaProvider {
+
+    public static final long DEFAULT_STALL_TIMEOUT = 30 * 1000;
+
+
+    private long mAvailableLength;
+    private boolean mIsFinished = false;
+    private boolean mIsFailed = false;
+    private long mStallTimeout = DEFAULT_STALL_TIMEOUT;
+    private ArrayList<DataListener> mListeners = new ArrayList<>();
+
+    private MediaTransfer.CancelListener mCancelListener = new MediaTransfer.CancelListener() {
+        @Override
+        public void onCancelled(MediaTransfer transfer) {
+            synchronized (GrowingFileMediaProvider.this) {
+                GrowingFileMediaProvider.this.notifyAll();
+            }
+        }
+    };
+
+
+    /**
+     * @param expectedLength total length of the file once written.
+     */
+    public GrowingFileMediaProvider(String filePath, long expectedLength) {
+        super(filePath);
+        if (expectedLength <= 0) {
+            throw new IllegalArgumentException("Expected length must be positive!");
+        }
+
+        // Keep the validators stable while the file grows.
+        mContentLength = expectedLength;
+        if (mLastModified == 0) {
+            mLastModified = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @param writtenLength bytes written to the file so far, from its start.
+     */
+    public void onDataWritten(long writtenLength) {
+        ArrayList<DataListener> listeners;
+        synchronized (this) {
+            if (mIsFinished || writtenLength <= mAvailableLength) {
+                return;
+            }
+
+            mAvailableLength = Math.min(writtenLength, mContentLength);
+            listeners = takeListeners();
+        }
+
+        notifyListeners(listeners);
+    }
+
+    /**
+     * The whole file is written. If it is shorter than expected, the content
+     * length is cut to its real length for the following responses.
+     */
+    public void onWriteFinished() {
+        ArrayList<DataListener> listeners;
+        synchronized (this) {
+            mIsFinished = true;
+            long length = new File(mFilePath).length();
+            if (length > 0 && length < mContentLength) {
+                mContentLength = length;
+                onMetadataChanged();
+            }
+
+            mAvailableLength = mContentLength;
+            listeners = takeListeners();
+        }
+
+        notifyListeners(listeners);
+    }
+
+    /**
+     * Writing stopped for good, reads waiting for more data fail.
+     */
+    public void onWriteFailed() {
+        ArrayList<DataListener> listeners;
+        synchronized (this) {
+            mIsFinished = true;
+            mIsFailed = true;
+            listeners = takeListeners();
+        }
+
+        notifyListeners(listeners);
+    }
+
+    public synchronized boolean isFinished() {
+        return mIsFinished;
+    }
+
+    @Override
+    public synchronized long getAvailableLength() {
+        return mAvailableLength;
+    }
+
+    /**
+     * Max time a read waits for data before failing, DEFAULT_STALL_TIMEOUT by default.
+     */
+    public void setStallTimeout(long timeoutMillis) {
+        mStallTimeout = timeoutMillis;
+    }
+
+    public long getStallTimeout() {
+        return mStallTimeout;
+    }
+
+    @Override
+    public synchronized boolean waitForData(long position, DataListener listener) {
+        if (position < mAvailableLength || mIsFinished) {
+            return false;
+        }
+
+        mListeners.add(listener);
+        return true;
+    }
+
+    @Override
+    public void setSegmentPool(MappedSegmentPool segmentPool) {
+        if (segmentPool != null && !isFinished()) {
+            throw new IllegalStateException("Memory map needs the whole file!");
+        }
+
+        super.setSegmentPool(segmentPool);
+    }
+
+    @Override
+    public void clean() {
+        onWriteFailed();
+        super.clean();
+    }
+
+    @Override
+    protected int sendVideoDataInternal(
+            OutputStream stream, WritableByteChannel channel,
+            long start, long length, MediaTransfer transfer) throws IOException {
+
+        int ioCount = 0;
+        while (length > 0) {
+            long count = Math.min(length, awaitData(start, transfer) - start);
+            if (count <= 0) {
+                throw new EOFException();
+            }
+
+            ioCount += super.sendVideoDataInternal(stream, channel, start, count, transfer);
+            start += count;
+            length -= count;
+        }
+
+        return ioCount;
+    }
+
+    /**
+     * Partly written blocks are read but not cached, and not read ahead.
+     */
+    @Override
+    int loadBlock(BlockCache blockCache, long blockIndex,
+                  byte[] block, boolean prefetch) throws IOException {
+
+        final int blockSize = blockCache.getBlockSize();
+        long blockEnd = Math.min((blockIndex + 1) * blockSize, mContentLength);
+        if (blockEnd <= getAvailableLength()) {
+            return super.loadBlock(blockCache, blockIndex, block, prefetch);
+        }
+
+        if (prefetch) {
+            return 0;
+        }
+
+        return readDirectly(blockIndex * blockSize, block, 0, blockSize);
+    }
+
+    /**
+     * Block until data at position is written, woken by the writer, clean()
+     * or the transfer being cancelled.
+     *
+     * @return the available length, not more than position at the end of file.
+     */
+    private long awaitData(long position, MediaTransfer transfer) throws IOException {
+        transfer.setCancelListener(mCancelListener);
+        try {
+            synchronized (this) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mStallTimeout);
+                while (position >= mAvailableLength && !mIsFinished) {
+                    transfer.checkCancelled();
+
+                    long waitTime = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (waitTime <= 0) {
+                        throw new InterruptedIOException("Wait For Data Timeout!");
+                    }
+
+                    try {
+                        wait(waitTime);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Wait For Data Interrupted!");
+                    }
+                }
+
+                if (mIsFailed && position >= mAvailableLength) {
+                    throw new IOException("Write Failed!");
+                }
+
+                return mAvailableLength;
+            }
+        } finally {
+            transfer.setCancelListener(null);
+        }
+    }
+
+    /**
+     * Called holding the lock: wakes blocked sends, and returns the parked
+     * listeners to be called after the lock is released.
+     */
+    private ArrayList<DataListener> takeListeners() {
+        notifyAll();
+        if (mListeners.isEmpty()) {
+            return null;
+        }
+
+        ArrayList<DataListener> listeners = mListeners;
+        mListeners = new ArrayList<>();
+        return listeners;
+    }
+
+    private static void notifyListeners(ArrayList<DataListener> listeners) {
+        if (listeners == null) {
+            return;
+        }
+
+        for (DataListener listener : listeners) {
+            listener.onDataAvailable();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Serve file data from memory mapped segments.
+ *
+ * Ranges are written to the socket straight from the mapped pages, no read
+ * syscall and no copy through the Java heap. Repeatedly requested regions
+ * (moov atom, keyframe index) stay in the page cache as long as their segment
+ * is mapped. Without a socket channel, or with a BlockCache set, data is copied
+ * from the segments instead, and read from the file when a segment can't be mapped.
+ */
+public class MappedFileMediaProvider extends RawFileMediaProvider {
+
+    public MappedFileMediaProvider(String filePath) {
+        this(filePath, MappedSegmentPool.DEFAULT_SEGMENT_SIZE,
+                MappedSegmentPool.DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * @param segmentSize size of each mapping.
+     * @param maxSegments segments mapped at the same time.
+     */
+    public MappedFileMediaProvider(String filePath, int segmentSize, int maxSegments) {
+        super(filePath);
+        setSegmentPool(new MappedSegmentPool(getHandlePool(), segmentSize, maxSegments));
+    }
+
+    @Override
+    public boolean canTransferVideoData() {
+        return getBlockCache() == null;
+    }
+
+    @Override
+    protected int sendVideoDataInternal(
+            OutputStream stream, WritableByteChannel channel,
+            long start, long length, MediaTransfer transfer) throws IOException {
+
+        if (channel == null || getBlockCache() != null) {
+            return sendVideoDataInternal(stream, start, length, transfer);
+        }
+
+        // Headers may still be buffered in the stream.
+        stream.flush();
+
+        int ioCount = 0;
+        while (length > 0) {
+            transfer.checkCancelled();
+            long count = transferVideoData(channel, start, length);
+            if (count < 0) {
+                // Segment not mapped, copy the rest through the heap from the file.
+                return ioCount + sendVideoDataInternal(stream, start, length, transfer);
+            }
+
+            if (count == 0) {
+                return ioCount;
+            }
+
+            ++ioCount;
+            transfer.onRead(count);
+            transfer.onSent(count);
+            start += count;
+            length -= count;
+        }
+
+        return ioCount;
+    }
+
+    @Override
+    public long transferVideoData(
+            WritableByteChannel channel, long position, long count) throws IOException {
+
+        if (getBlockCache() != null) {
+            return -1;
+        }
+
+        try {
+            return getSegmentPool().transferTo(channel, position, count);
+        } catch (MappedSegmentPool.MapFailedException e) {
+            return -1;
+        }
+    }
+}
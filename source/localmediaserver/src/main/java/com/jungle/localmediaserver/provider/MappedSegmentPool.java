@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+import com.jungle.localmediaserver.FileUtils;
+
+import com.jungle.localmediaserver.log.MediaLog;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Read-only memory mapped segments of one file, shared by all sessions of a provider.
+ *
+ *      |<- segment 0 ->|<- segment 1 ->|<- segment 2 ->| ...
+ *          (mapped)        (not yet)       (mapped)
+ *
+ * Segments are mapped lazily on first access, and at most maxSegments stay mapped,
+ * so large files do not exhaust the address space. A segment is pinned while data
+ * is copied or written from it, dropped segments are unmapped explicitly once no
+ * longer pinned, instead of waiting for their buffers to be garbage collected
+ * (the address space of 32-bit devices runs out long before the heap does).
+ * If mapping still fails, MapFailedException tells the caller to read the file.
+ */
+public class MappedSegmentPool {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * FileUtils.MB;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    private static final String TAG = "MappedSegmentPool";
+
+    private static boolean sIsUnmapperResolved = false;
+    private static Object sUnsafe;
+    private static Method sInvokeCleanerMethod;
+
+
+    /**
+     * The file could not be mapped, e.g. the address space is exhausted.
+     */
+    public static class MapFailedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public MapFailedException(String message) {
+            super(message);
+        }
+    }
+
+
+    private static class Segment {
+        MappedByteBuffer mBuffer;
+        int mPinCount;
+        boolean mIsDropped;
+
+        Segment(MappedByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+    }
+
+
+    private FileHandlePool mHandlePool;
+    private int mSegmentSize;
+    private int mMaxSegments;
+    private LinkedHashMap<Long, Segment> mSegments =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long mMappedCount;
+    private long mDroppedCount;
+    private long mUnmappedCount;
+    private boolean mIsClosed = false;
+
+
+    public MappedSegmentPool(FileHandlePool handlePool) {
+        this(handlePool, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    public MappedSegmentPool(FileHandlePool handlePool, int segmentSize, int maxSegments) {
+        mHandlePool = handlePool;
+        mSegmentSize = segmentSize;
+        mMaxSegments = Math.max(1, maxSegments);
+    }
+
+    public int getSegmentSize() {
+        return mSegmentSize;
+    }
+
+    /**
+     * Write file data at position to channel, from one segment and at most count bytes.
+     *
+     * @return count of bytes written, -1 at the end of file.
+     */
+    public long transferTo(
+            WritableByteChannel channel, long position, long count) throws IOException {
+
+        long segmentIndex = position / mSegmentSize;
+        int offsetInSegment = (int) (position % mSegmentSize);
+
+        Segment segment = pinSegment(segmentIndex, offsetInSegment);
+        try {
+            ByteBuffer view = view(segment, offsetInSegment, count);
+            return view != null ? channel.write(view) : -1;
+        } finally {
+            unpinSegment(segment);
+        }
+    }
+
+    /**
+     * Copy file data at position into buffer.
+     *
+     * @return count of bytes copied, -1 at the end of file.
+     */
+    public int read(long position, byte[] buffer, int offset, int count) throws IOException {
+        int total = 0;
+        while (count > 0) {
+            long segmentIndex = position / mSegmentSize;
+            int offsetInSegment = (int) (position % mSegmentSize);
+
+            int length;
+            Segment segment = pinSegment(segmentIndex, offsetInSegment);
+            try {
+                ByteBuffer view = view(segment, offsetInSegment, count);
+                if (view == null) {
+                    break;
+                }
+
+                length = view.remaining();
+                view.get(buffer, offset, length);
+            } finally {
+                unpinSegment(segment);
+            }
+
+            total += length;
+            position += length;
+            offset += length;
+            count -= length;
+        }
+
+        return total > 0 ? total : -1;
+    }
+
+    private static ByteBuffer view(Segment segment, int offsetInSegment, long count) {
+        ByteBuffer buffer = segment.mBuffer.duplicate();
+        if (offsetInSegment >= buffer.capacity()) {
+            return null;
+        }
+
+        buffer.position(offsetInSegment);
+        buffer.limit((int) Math.min(buffer.capacity(), offsetInSegment + count));
+        return buffer;
+    }
+
+    private synchronized Segment pinSegment(
+            long segmentIndex, int offsetInSegment) throws IOException {
+
+        if (mIsClosed) {
+            throw new IOException("Segment Pool Closed!");
+        }
+
+        Segment segment = mSegments.get(segmentIndex);
+
+        // The last segment is re-mapped if the file has grown since.
+        if (segment == null || (offsetInSegment >= segment.mBuffer.capacity()
+                && segment.mBuffer.capacity() < mSegmentSize)) {
+            segment = mapSegment(segmentIndex, segment);
+        }
+
+        ++segment.mPinCount;
+        return segment;
+    }
+
+    private synchronized void unpinSegment(Segment segment) {
+        --segment.mPinCount;
+        if (segment.mIsDropped && segment.mPinCount == 0) {
+            unmap(segment);
+        }
+    }
+
+    private Segment mapSegment(long segmentIndex, Segment oldSegment) throws IOException {
+        MappedByteBuffer buffer;
+        FileChannel fileChannel = mHandlePool.acquire();
+        try {
+            long start = segmentIndex * mSegmentSize;
+            long size = Math.max(0, Math.min(mSegmentSize, fileChannel.size() - start));
+            if (oldSegment != null && size <= oldSegment.mBuffer.capacity()) {
+                return oldSegment;
+            }
+
+            buffer = map(fileChannel, start, size);
+            if (buffer == null) {
+                // Give back the address space of every idle segment, then retry once.
+                dropUnpinnedSegments();
+                buffer = map(fileChannel, start, size);
+                if (buffer == null) {
+                    throw new MapFailedException("Map Failed At " + start + "!");
+                }
+            }
+        } finally {
+            mHandlePool.release(fileChannel);
+        }
+
+        ++mMappedCount;
+        Segment segment = new Segment(buffer);
+        if (oldSegment != null) {
+            drop(oldSegment);
+        }
+
+        mSegments.put(segmentIndex, segment);
+        if (mSegments.size() > mMaxSegments) {
+            Iterator<Map.Entry<Long, Segment>> iterator = mSegments.entrySet().iterator();
+            drop(iterator.next().getValue());
+            iterator.remove();
+        }
+
+        return segment;
+    }
+
+    private static MappedByteBuffer map(FileChannel fileChannel, long start, long size) {
+        try {
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        } catch (IOException e) {
+            MediaLog.e(TAG, "Map Failed: " + e);
+        } catch (OutOfMemoryError e) {
+            MediaLog.e(TAG, "Map Failed: " + e);
+        }
+
+        return null;
+    }
+
+    private void dropUnpinnedSegments() {
+        List<Long> indexes = new ArrayList<>();
+        for (Map.Entry<Long, Segment> entry : mSegments.entrySet()) {
+            if (entry.getValue().mPinCount == 0) {
+                indexes.add(entry.getKey());
+            }
+        }
+
+        for (Long index : indexes) {
+            drop(mSegments.remove(index));
+        }
+    }
+
+    private void drop(Segment segment) {
+        ++mDroppedCount;
+        segment.mIsDropped = true;
+        if (segment.mPinCount == 0) {
+            unmap(segment);
+        }
+    }
+
+    private void unmap(Segment segment) {
+        MappedByteBuffer buffer = segment.mBuffer;
+        if (buffer != null) {
+            segment.mBuffer = null;
+            if (unmap(buffer)) {
+                ++mUnmappedCount;
+            }
+        }
+    }
+
+    /**
+     * Unmap right now where the platform allows it, otherwise the mapping is
+     * released when the buffer is garbage collected.
+     *
+     * Java 9+ : Unsafe.invokeCleaner(buffer)
+     * Java 8  : ((DirectBuffer) buffer).cleaner().clean()
+     * Android : ((DirectByteBuffer) buffer).free()
+     */
+    private static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            synchronized (MappedSegmentPool.class) {
+                if (!sIsUnmapperResolved) {
+                    sIsUnmapperResolved = true;
+                    resolveUnsafe();
+                }
+            }
+
+            if (sInvokeCleanerMethod != null) {
+                sInvokeCleanerMethod.invoke(sUnsafe, buffer);
+                return true;
+            }
+
+            Method cleanerMethod = findMethod(buffer.getClass(), "cleaner");
+            if (cleanerMethod != null) {
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    Method cleanMethod = cleaner.getClass().getMethod("clean");
+                    cleanMethod.setAccessible(true);
+                    cleanMethod.invoke(cleaner);
+                    return true;
+                }
+            }
+
+            Method freeMethod = findMethod(buffer.getClass(), "free");
+            if (freeMethod != null) {
+                freeMethod.invoke(buffer);
+                return true;
+            }
+        } catch (Exception e) {
+            MediaLog.e(TAG, "Unmap Failed: " + e);
+        }
+
+        return false;
+    }
+
+    private static void resolveUnsafe() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleanerMethod = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            sUnsafe = field.get(null);
+            sInvokeCleanerMethod = invokeCleanerMethod;
+        } catch (Exception e) {
+            // Before Java 9, or Android.
+        }
+    }
+
+    private static Method findMethod(Class<?> clazz, String name) {
+        for (; clazz != null; clazz = clazz.getSuperclass()) {
+            try {
+                Method method = clazz.getDeclaredMethod(name);
+                method.setAccessible(true);
+                return method;
+            } catch (Exception e) {
+                // Try the super class.
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Drop and unmap all segments, pinned segments are unmapped once released.
+     */
+    public synchronized void close() {
+        mIsClosed = true;
+        for (Segment segment : mSegments.values()) {
+            drop(segment);
+        }
+
+        mSegments.clear();
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Count of segments mapped since created.
+     */
+    public synchronized long getMappedCount() {
+        return mMappedCount;
+    }
+
+    /**
+     * Count of segments dropped as least recently used, re-mapped, or by close().
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Count of dropped segments unmapped explicitly, the rest wait for the GC.
+     */
+    public synchronized long getUnmappedCount() {
+        return mUnmappedCount;
+    }
+}
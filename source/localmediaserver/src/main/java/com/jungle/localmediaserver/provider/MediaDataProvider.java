@@ -8,17 +8,42 @@
 
 package com.jungle.localmediaserver.provider;
 
-import android.util.Log;
 import com.jungle.localmediaserver.ServerHttpSession;
+import com.jungle.localmediaserver.log.MediaLog;
+import com.jungle.localmediaserver.stats.ServerStats;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 public abstract class MediaDataProvider {
 
+    public static final String DEFAULT_CONTENT_TYPE = "video/mp4";
+
+
+    /**
+     * Wakes a non-blocking session parked until more data is available.
+     */
+    public interface DataListener {
+
+        /**
+         * Called once, on the thread writing the data.
+         */
+        void onDataAvailable();
+    }
+
+
     protected String mFilePath;
     protected long mContentLength;
+    protected long mLastModified;
+    /**
+     * Null until set, or detected from the content.
+     */
+    protected String mContentType;
+    protected ServerStats mStats;
+    private volatile String mETag;
+    private volatile int mMetadataVersion;
 
 
     public MediaDataProvider(String filePath) {
@@ -26,6 +51,7 @@ public abstract class MediaDataProvider {
         File file = new File(filePath);
         if (file.exists()) {
             mContentLength = file.length();
+            mLastModified = file.lastModified();
         }
     }
 
@@ -33,20 +59,226 @@ public abstract class MediaDataProvider {
         return mContentLength;
     }
 
+    /**
+     * Bytes readable right now from the start of the content, less than
+     * getContentLength() while the content is still being written.
+     */
+    public long getAvailableLength() {
+        return mContentLength;
+    }
+
+    /**
+     * Park a non-blocking reader until the data at position is available.
+     *
+     * @return false if the data is already available (or never will be),
+     * listener is not called then.
+     */
+    public boolean waitForData(long position, DataListener listener) {
+        return false;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * Strong validator of the content, for ETag & If-Range. Formatted once,
+     * until onMetadataChanged().
+     */
+    public String getETag() {
+        String eTag = mETag;
+        if (eTag != null) {
+            return eTag;
+        }
+
+        synchronized (this) {
+            if (mETag == null) {
+                mETag = String.format("\"%x-%x\"", mContentLength, mLastModified);
+            }
+
+            return mETag;
+        }
+    }
+
+    /**
+     * Changes whenever Content-Type, ETag or Last-Modified may have changed, so
+     * headers encoded from them are cached until then. A pending content type
+     * detection is retried first.
+     */
+    public int getMetadataVersion() {
+        if (mContentType == null) {
+            getContentType();
+        }
+
+        return mMetadataVersion;
+    }
+
+    /**
+     * Called by subclasses after changing mContentLength, mLastModified or
+     * mContentType once the provider is served.
+     */
+    protected synchronized void onMetadataChanged() {
+        mETag = null;
+        ++mMetadataVersion;
+    }
+
+    /**
+     * Set by setContentType(), or detected once from the first bytes of the
+     * content, see {@link ContentTypeDetector}. DEFAULT_CONTENT_TYPE if unknown.
+     */
+    public String getContentType() {
+        String contentType = mContentType;
+        if (contentType == null) {
+            contentType = detectContentType();
+            if (contentType == null) {
+                // Not written yet, detected again by the next call.
+                return DEFAULT_CONTENT_TYPE;
+            }
+
+            mContentType = contentType;
+            onMetadataChanged();
+        }
+
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        mContentType = contentType;
+        onMetadataChanged();
+    }
+
+    /**
+     * @return null if the first bytes are not available yet.
+     */
+    private String detectContentType() {
+        int count = (int) Math.min(ContentTypeDetector.HEADER_SIZE, getAvailableLength());
+        if (count < ContentTypeDetector.HEADER_SIZE && count < getContentLength()) {
+            return null;
+        }
+
+        byte[] header = new byte[count];
+        int length = 0;
+        try {
+            while (length < count) {
+                int read = readVideoData(length, header, length, count - length);
+                if (read <= 0) {
+                    break;
+                }
+
+                length += read;
+            }
+        } catch (IOException e) {
+            MediaLog.e(ServerHttpSession.TAG, "Detect Content Type FAILED!", e);
+        }
+
+        String contentType = ContentTypeDetector.detect(header, length);
+        return contentType != null ? contentType : DEFAULT_CONTENT_TYPE;
+    }
+
+    /**
+     * Record reads into stats, set by LocalMediaServer when registered.
+     */
+    public void setStats(ServerStats stats) {
+        mStats = stats;
+    }
+
+    public ServerStats getStats() {
+        return mStats;
+    }
+
     public abstract void clean();
 
     protected abstract int sendVideoDataInternal(
-            OutputStream stream, int start, int length) throws IOException;
+            OutputStream stream, long start, long length) throws IOException;
+
+    /**
+     * Send video data, the channel is the socket's channel (may be null) and
+     * can be used by providers to transfer data without copying through the heap.
+     */
+    protected int sendVideoDataInternal(
+            OutputStream stream, WritableByteChannel channel,
+            long start, long length) throws IOException {
+
+        return sendVideoDataInternal(stream, start, length);
+    }
+
+    /**
+     * Send video data for transfer, providers check transfer.checkCancelled()
+     * between chunks and report their progress into it.
+     * Providers not overriding this ignore cancellation.
+     */
+    protected int sendVideoDataInternal(
+            OutputStream stream, WritableByteChannel channel,
+            long start, long length, MediaTransfer transfer) throws IOException {
+
+        transfer.checkCancelled();
+        int ioCount = sendVideoDataInternal(stream, channel, start, length);
+        transfer.onRead(length);
+        transfer.onSent(length);
+        return ioCount;
+    }
+
+    /**
+     * Read media data at position into buffer, used by the non-blocking engine.
+     *
+     * @return count of bytes read, -1 at the end of file.
+     */
+    public abstract int readVideoData(
+            long position, byte[] buffer, int offset, int count) throws IOException;
+
+    /**
+     * Transfer media data at position straight into a (non-blocking) channel.
+     *
+     * @return count of bytes transferred, -1 if not supported by this provider.
+     */
+    public long transferVideoData(
+            WritableByteChannel channel, long position, long count) throws IOException {
+
+        return -1;
+    }
+
+    /**
+     * Whether transferVideoData() is supported, checked before the response
+     * header is written.
+     */
+    public boolean canTransferVideoData() {
+        return false;
+    }
+
+    public boolean sendVideoData(OutputStream stream, long start, long length) {
+        return sendVideoData(stream, null, start, length);
+    }
+
+    public boolean sendVideoData(
+            OutputStream stream, WritableByteChannel channel, long start, long length) {
+
+        return sendVideoData(stream, channel, start, length, new MediaTransfer());
+    }
+
+    /**
+     * @return false if sending failed, or transfer was cancelled.
+     */
+    public boolean sendVideoData(OutputStream stream, WritableByteChannel channel,
+            long start, long length, MediaTransfer transfer) {
 
-    public void sendVideoData(OutputStream stream, int start, int length) {
         try {
-            int ioCount = sendVideoDataInternal(stream, start, length);
+            int ioCount = sendVideoDataInternal(stream, channel, start, length, transfer);
 
-            Log.e(ServerHttpSession.TAG, String.format(
-                    "**Video Data Send Successfully! IO-Count = %d.", ioCount));
+            MediaLog.d(ServerHttpSession.TAG,
+                    "**Video Data Send Successfully! IO-Count = %d.", ioCount);
+            return true;
         } catch (Exception e) {
-            Log.e(ServerHttpSession.TAG, "**Write Video Data FAILED!");
-            e.printStackTrace();
+            if (!transfer.isCancelled() && MediaTransfer.isClientGone(e)) {
+                transfer.cancel();
+            }
+
+            if (transfer.isCancelled()) {
+                MediaLog.d(ServerHttpSession.TAG, "**Video Data Send Cancelled.");
+            } else {
+                MediaLog.e(ServerHttpSession.TAG, "**Write Video Data FAILED!", e);
+            }
         }
+
+        return false;
     }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+import java.io.IOException;
+import java.net.SocketException;
+
+/*
+ * One body transfer of a session, shared with the provider sending it.
+ *
+ *      session   -> cancel()        player left, or a newer request superseded it
+ *      provider  -> checkCancelled() before each read / decrypt / write of the loop
+ *                -> onRead(), onSent()
+ *
+ * Cancellation is cooperative: the provider loop stops at its next check,
+ * releases its buffers & file handles on the way out, and the bytes read but
+ * never sent are reported by getWastedBytes(). A provider blocked waiting for
+ * data sets a CancelListener, so cancel() wakes it instead of it polling.
+ * A write failing because the client is gone (see isClientGone()) cancels the
+ * transfer too, it is not a server failure.
+ */
+public class MediaTransfer {
+
+    public static class CancelledException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public CancelledException() {
+            super("Transfer Cancelled!");
+        }
+    }
+
+
+    /**
+     * Wakes the provider blocked on behalf of a transfer.
+     */
+    public interface CancelListener {
+
+        /**
+         * Called once, on the thread cancelling the transfer.
+         */
+        void onCancelled(MediaTransfer transfer);
+    }
+
+
+    /**
+     * @return whether e, thrown by a socket read or write, means the client
+     * reset or closed the connection.
+     */
+    public static boolean isClientGone(Exception e) {
+        if (e instanceof SocketException) {
+            return true;
+        }
+
+        // Socket channels report EPIPE & ECONNRESET as plain IOExceptions.
+        String message = e instanceof IOException ? e.getMessage() : null;
+        return message != null
+                && (message.contains("Broken pipe") || message.contains("Connection reset"));
+    }
+
+
+    private volatile boolean mIsCancelled = false;
+    private volatile CancelListener mCancelListener;
+    private long mBytesRead;
+    private long mBytesSent;
+
+
+    /**
+     * Ask the provider to stop, may be called from any thread.
+     */
+    public void cancel() {
+        mIsCancelled = true;
+
+        CancelListener listener = mCancelListener;
+        if (listener != null) {
+            listener.onCancelled(this);
+        }
+    }
+
+    /**
+     * Set before blocking and checking isCancelled(), cleared with null after.
+     */
+    public void setCancelListener(CancelListener listener) {
+        mCancelListener = listener;
+    }
+
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    public void checkCancelled() throws CancelledException {
+        if (mIsCancelled) {
+            throw new CancelledException();
+        }
+    }
+
+    /**
+     * Called by the sending thread for each chunk read (or decrypted) from the file.
+     */
+    public void onRead(long count) {
+        mBytesRead += Math.max(0, count);
+    }
+
+    /**
+     * Called by the sending thread for each chunk handed to the socket.
+     */
+    public void onSent(long count) {
+        mBytesSent += Math.max(0, count);
+    }
+
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return bytes read for this transfer but never handed to the socket.
+     */
+    public long getWastedBytes() {
+        return Math.max(0, mBytesRead - mBytesSent);
+    }
+}
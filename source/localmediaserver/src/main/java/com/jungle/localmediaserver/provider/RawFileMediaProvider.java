@@ -9,57 +9,631 @@
 package com.jungle.localmediaserver.provider;
 
 import com.jungle.localmediaserver.FileUtils;
+import com.jungle.localmediaserver.stats.ServerStats;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+/*
+ * Serve file data as it is.
+ *
+ * Data is read from pooled FileChannels (or memory mapped segments), sent with
+ * zero-copy transfers when possible, or through an optional BlockCache which
+ * the read-ahead stage fills in the background:
+ *
+ *      session -> BlockCache --(miss)--> readDirectly() -> FileChannel / MappedSegmentPool
+ *                     ^
+ *                     |-- ReadAheadPrefetcher (sequential reads only)
+ */
 public class RawFileMediaProvider extends MediaDataProvider {
 
+    private static final int SEND_BUFFER_SIZE = 64 * FileUtils.KB;
+
+    /**
+     * Bytes of one zero-copy transfer, bounds the time between two checks
+     * for cancellation.
+     */
+    private static final int TRANSFER_CHUNK_SIZE = 16 * SEND_BUFFER_SIZE;
+
+    /**
+     * Idle send, block & parallel read buffers kept for the following requests.
+     */
+    private static final int MAX_IDLE_BUFFERS = 4;
+
+    private static final int PARALLEL_CHUNK_SIZE = 256 * FileUtils.KB;
+    private static final int PARALLEL_THREAD_COUNT =
+            Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int PARALLEL_MAX_IN_FLIGHT = 2 * PARALLEL_THREAD_COUNT;
+
+    /**
+     * Smallest range worth sendVideoDataParallel().
+     */
+    protected static final int PARALLEL_THRESHOLD = 2 * PARALLEL_CHUNK_SIZE;
+
+    private static ExecutorService sParallelExecutor;
+
+    private boolean mZeroCopyEnabled;
+    private FileHandlePool mHandlePool;
+    private MappedSegmentPool mSegmentPool;
+    private BlockCache mBlockCache;
+    private ReadAheadPrefetcher mReadAhead;
+    private BufferPool mBufferPool = new BufferPool(MAX_IDLE_BUFFERS);
+
+
     public RawFileMediaProvider(String filePath) {
         super(filePath);
+        mZeroCopyEnabled = canTransferRawData();
+        mHandlePool = new FileHandlePool(filePath);
     }
 
     @Override
     public void clean() {
+        if (mReadAhead != null) {
+            mReadAhead.close();
+        }
+
+        if (mBlockCache != null) {
+            mBlockCache.release();
+        }
+
+        if (mSegmentPool != null) {
+            mSegmentPool.close();
+        }
+
+        mBufferPool.release();
+        mHandlePool.close();
+    }
+
+    public FileHandlePool getHandlePool() {
+        return mHandlePool;
+    }
+
+    /**
+     * Read from memory mapped segments instead of read syscalls, see
+     * {@link MappedSegmentPool}.
+     */
+    public void setMemoryMapEnabled(boolean enabled) {
+        if (enabled != (mSegmentPool != null)) {
+            setSegmentPool(enabled ? new MappedSegmentPool(mHandlePool) : null);
+        }
+    }
+
+    /**
+     * Read from segmentPool, which must map this provider's file.
+     * Pass null to use read syscalls.
+     */
+    public void setSegmentPool(MappedSegmentPool segmentPool) {
+        if (mSegmentPool != null) {
+            mSegmentPool.close();
+        }
+
+        mSegmentPool = segmentPool;
+    }
+
+    public boolean isMemoryMapEnabled() {
+        return mSegmentPool != null;
+    }
+
+    /**
+     * @return segments of the file, null if memory map is disabled.
+     */
+    public MappedSegmentPool getSegmentPool() {
+        return mSegmentPool;
+    }
+
+    /**
+     * Zero-copy transfer is only available when the file data is sent as it is,
+     * see {@link #canTransferRawData()}.
+     */
+    public void setZeroCopyEnabled(boolean enabled) {
+        mZeroCopyEnabled = enabled && canTransferRawData();
+    }
+
+    public boolean isZeroCopyEnabled() {
+        return mZeroCopyEnabled;
+    }
+
+    /**
+     * Cache blocks read from the file, shared by all sessions. Zero-copy transfers
+     * bypass the cache, so they are not used while a cache is set.
+     * Pass null to disable caching.
+     */
+    public void setBlockCache(BlockCache blockCache) {
+        mBlockCache = blockCache;
+    }
+
+    public BlockCache getBlockCache() {
+        return mBlockCache;
+    }
+
+    /**
+     * Prefetch up to size bytes ahead of sequential reads into the block cache on
+     * a background thread, a default BlockCache is set if none. Pass 0 to disable.
+     */
+    public void setReadAheadSize(int size) {
+        if (mReadAhead != null) {
+            mReadAhead.close();
+            mReadAhead = null;
+        }
+
+        if (size <= 0) {
+            return;
+        }
+
+        if (mBlockCache == null) {
+            setBlockCache(new BlockCache());
+        }
+
+        mReadAhead = new ReadAheadPrefetcher(this, size);
+    }
+
+    public int getReadAheadSize() {
+        return mReadAhead != null ? mReadAhead.getWindowSize() : 0;
+    }
+
+    private boolean isZeroCopyActive() {
+        return mZeroCopyEnabled && mBlockCache == null;
+    }
+
+    /**
+     * Whether the file data can be sent without passing through the provider,
+     * false by default for subclasses overriding writeStream.
+     * Called from the constructor.
+     */
+    protected boolean canTransferRawData() {
+        Class<?> clazz = getClass();
+        while (clazz != RawFileMediaProvider.class) {
+            try {
+                clazz.getDeclaredMethod("writeStream",
+                        OutputStream.class, byte[].class, int.class, int.class);
+                return false;
+            } catch (NoSuchMethodException e) {
+                clazz = clazz.getSuperclass();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Buffer of at least size bytes from the provider's pool, give it back with
+     * recycleBuffer(). Pooled buffers are zero-filled by clean().
+     */
+    protected final byte[] obtainBuffer(int size) {
+        return mBufferPool.obtain(size);
+    }
+
+    protected final void recycleBuffer(byte[] buffer) {
+        mBufferPool.recycle(buffer);
     }
 
     @Override
     protected int sendVideoDataInternal(
-            OutputStream stream, int start, int length) throws IOException {
+            OutputStream stream, WritableByteChannel channel,
+            long start, long length) throws IOException {
 
-        RandomAccessFile file = null;
+        return sendVideoDataInternal(stream, channel, start, length, new MediaTransfer());
+    }
+
+    @Override
+    protected int sendVideoDataInternal(
+            OutputStream stream, WritableByteChannel channel,
+            long start, long length, MediaTransfer transfer) throws IOException {
+
+        if (channel == null || !isZeroCopyActive()) {
+            return sendVideoDataInternal(stream, start, length, transfer);
+        }
+
+        // Headers may still be buffered in the stream.
+        stream.flush();
+        return sendVideoDataZeroCopy(channel, start, length, transfer);
+    }
+
+    private int sendVideoDataZeroCopy(WritableByteChannel channel,
+            long start, long length, MediaTransfer transfer) throws IOException {
+
+        FileChannel fileChannel = mHandlePool.acquire();
 
         try {
-            file = new RandomAccessFile(mFilePath, "r");
-            file.seek(start);
+            int ioCount = 0;
+            long count = 0;
+            while (length > 0) {
+                transfer.checkCancelled();
+                count = fileChannel.transferTo(
+                        start, Math.min(length, TRANSFER_CHUNK_SIZE), channel);
+                if (count <= 0) {
+                    return ioCount;
+                }
 
-            final int buffLength = 8 * FileUtils.KB;
-            final byte[] buffer = new byte[buffLength];
+                ++ioCount;
+                transfer.onRead(count);
+                transfer.onSent(count);
+                start += count;
+                length -= count;
+            }
+
+            return ioCount;
+        } finally {
+            mHandlePool.release(fileChannel);
+        }
+    }
+
+    @Override
+    public int readVideoData(
+            long position, byte[] buffer, int offset, int count) throws IOException {
+
+        count = readThroughCache(position, buffer, offset, count);
+        onDataRead(position, count);
+        return count;
+    }
 
+    /**
+     * Read from the file, bypassing the block cache. Subclasses transforming the
+     * data (e.g. decrypting) override this, so the cache holds transformed data.
+     */
+    protected int readDirectly(
+            long position, byte[] buffer, int offset, int count) throws IOException {
+
+        ServerStats stats = mStats;
+        long startTime = stats != null ? System.nanoTime() : 0;
+
+        MappedSegmentPool segmentPool = mSegmentPool;
+        if (segmentPool != null) {
+            try {
+                count = segmentPool.read(position, buffer, offset, count);
+            } catch (MappedSegmentPool.MapFailedException e) {
+                count = readFile(position, buffer, offset, count);
+            }
+        } else {
+            count = readFile(position, buffer, offset, count);
+        }
+
+        if (stats != null) {
+            stats.onProviderRead(count, System.nanoTime() - startTime);
+        }
+
+        return count;
+    }
+
+    /**
+     * Fill the buffer unless the end of file is reached, so reads from an
+     * aligned position end aligned (cipher blocks, chunks).
+     */
+    private int readFile(
+            long position, byte[] buffer, int offset, int count) throws IOException {
+
+        FileChannel fileChannel = mHandlePool.acquire();
+
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, count);
+            while (byteBuffer.hasRemaining()) {
+                if (fileChannel.read(byteBuffer, position + byteBuffer.position() - offset) < 0) {
+                    break;
+                }
+            }
+
+            int total = byteBuffer.position() - offset;
+            return total > 0 || count == 0 ? total : -1;
+        } finally {
+            mHandlePool.release(fileChannel);
+        }
+    }
+
+    /**
+     * Read through the block cache if set, does not feed the read-ahead stage.
+     *
+     * @param position aligned to the granularity of readDirectly().
+     * @return count of bytes read, -1 at the end of file.
+     */
+    protected final int readThroughCache(
+            long position, byte[] buffer, int offset, int count) throws IOException {
+
+        BlockCache blockCache = mBlockCache;
+        if (blockCache == null) {
+            return readDirectly(position, buffer, offset, count);
+        }
+
+        final int blockSize = blockCache.getBlockSize();
+        final ServerStats stats = mStats;
+        int total = 0;
+        while (count > 0) {
+            long blockIndex = position / blockSize;
+            int offsetInBlock = (int) (position % blockSize);
+            int length = Math.min(count, blockSize - offsetInBlock);
+
+            int read = blockCache.read(blockIndex, offsetInBlock, buffer, offset, length, stats);
+            if (read < 0) {
+                byte[] block = obtainBuffer(blockSize);
+                try {
+                    int blockLength = loadBlock(blockCache, blockIndex, block, false);
+                    if (blockLength <= 0) {
+                        break;
+                    }
+
+                    read = Math.max(0, Math.min(length, blockLength - offsetInBlock));
+                    System.arraycopy(block, offsetInBlock, buffer, offset, read);
+                } finally {
+                    recycleBuffer(block);
+                }
+            }
+
+            total += read;
+            position += read;
+            offset += read;
+            count -= read;
+
+            if (read < length) {
+                break;
+            }
+        }
+
+        return total > 0 ? total : -1;
+    }
+
+    /**
+     * Tell the read-ahead stage that data at position was served.
+     */
+    protected final void onDataRead(long position, int count) {
+        ReadAheadPrefetcher readAhead = mReadAhead;
+        if (readAhead != null && count > 0) {
+            readAhead.onRead(position, count);
+        }
+    }
+
+    /**
+     * Read block at blockIndex from the file into blockCache.
+     *
+     * @param prefetch loaded by the read-ahead stage rather than for a served read.
+     * @return length of the block, less than the block size at the end of file.
+     */
+    int loadBlock(BlockCache blockCache, long blockIndex,
+                  byte[] block, boolean prefetch) throws IOException {
+
+        final int blockSize = blockCache.getBlockSize();
+        int blockLength = readDirectly(blockIndex * blockSize, block, 0, blockSize);
+        if (blockLength > 0) {
+            blockCache.put(blockIndex, block, 0, blockLength, prefetch);
+        }
+
+        return blockLength;
+    }
+
+    @Override
+    public boolean canTransferVideoData() {
+        return isZeroCopyActive();
+    }
+
+    @Override
+    public long transferVideoData(
+            WritableByteChannel channel, long position, long count) throws IOException {
+
+        if (!isZeroCopyActive()) {
+            return -1;
+        }
+
+        FileChannel fileChannel = mHandlePool.acquire();
+
+        try {
+            if (position >= fileChannel.size()) {
+                throw new EOFException();
+            }
+
+            return fileChannel.transferTo(position, count, channel);
+        } finally {
+            mHandlePool.release(fileChannel);
+        }
+    }
+
+    @Override
+    protected int sendVideoDataInternal(
+            OutputStream stream, long start, long length) throws IOException {
+
+        return sendVideoDataInternal(stream, start, length, new MediaTransfer());
+    }
+
+    /**
+     * Send loop through a pooled buffer, stops at the first chunk after
+     * transfer is cancelled.
+     */
+    protected int sendVideoDataInternal(OutputStream stream,
+            long start, long length, MediaTransfer transfer) throws IOException {
+
+        final byte[] buffer = obtainBuffer(SEND_BUFFER_SIZE);
+        try {
             int ioCount = 0;
             int count = 0;
             while (length > 0) {
-                count = file.read(buffer, 0, Math.min(length, buffLength));
+                transfer.checkCancelled();
+                count = readThroughCache(start, buffer, 0,
+                        (int) Math.min(length, SEND_BUFFER_SIZE));
                 if (count < 0) {
                     return ioCount;
                 }
 
                 ++ioCount;
+                transfer.onRead(count);
+                onDataRead(start, count);
+                transfer.checkCancelled();
                 writeStream(stream, buffer, 0, count);
+                transfer.onSent(count);
+                start += count;
                 length -= count;
             }
 
             return ioCount;
         } finally {
-            FileUtils.closeStream(file);
+            recycleBuffer(buffer);
         }
     }
 
+    /**
+     * Bytes of one send loop chunk.
+     */
+    protected static int getSendBufferSize() {
+        return SEND_BUFFER_SIZE;
+    }
+
+    /**
+     * No flush here, the session flushes once at the end of the response.
+     */
     protected void writeStream(
             OutputStream stream, byte[] buffer, int start, int count) throws IOException {
 
         stream.write(buffer, start, count);
-        stream.flush();
+    }
+
+    /**
+     * Read large ranges on a shared worker pool and write them in order, for
+     * subclasses whose readDirectly() is CPU bound (decrypting). The range is
+     * split into tasks of about PARALLEL_CHUNK_SIZE, with at most
+     * PARALLEL_MAX_IN_FLIGHT of them held in memory per session. When the
+     * transfer is cancelled, queued tasks are dropped and running ones skip
+     * their read.
+     *
+     * @param alignment granularity of readDirectly(), tasks start at multiples
+     *                  of it and the leading bytes of the first one are dropped.
+     */
+    protected final int sendVideoDataParallel(OutputStream stream, long start,
+            long length, int alignment, MediaTransfer transfer) throws IOException {
+
+        ExecutorService executor = getParallelExecutor();
+        ArrayDeque<ParallelReadTask> inFlightTasks = new ArrayDeque<>();
+        final int taskSize = (PARALLEL_CHUNK_SIZE + alignment - 1) / alignment * alignment;
+
+        int skip = (int) (start % alignment);
+        long position = start - skip;
+        long remaining = length + skip;
+
+        int ioCount = 0;
+        try {
+            while (remaining > 0 || !inFlightTasks.isEmpty()) {
+                while (remaining > 0 && inFlightTasks.size() < PARALLEL_MAX_IN_FLIGHT) {
+                    byte[] buffer = obtainBuffer(taskSize);
+                    int count = (int) Math.min(remaining, taskSize);
+                    ParallelReadTask task = new ParallelReadTask(position, buffer, count, transfer);
+                    task.mFuture = executor.submit(task);
+                    inFlightTasks.addLast(task);
+
+                    position += count;
+                    remaining -= count;
+                }
+
+                ParallelReadTask task = inFlightTasks.pollFirst();
+                int count;
+                try {
+                    count = task.getResult();
+                    if (count <= skip) {
+                        return ioCount;
+                    }
+
+                    ++ioCount;
+                    transfer.onRead(count - skip);
+                    onDataRead(task.mPosition, count);
+                    transfer.checkCancelled();
+                    stream.write(task.mBuffer, skip, count - skip);
+                    transfer.onSent(count - skip);
+                    skip = 0;
+                } finally {
+                    recycleBuffer(task.mBuffer);
+                }
+
+                if (count < task.mCount) {
+                    return ioCount;
+                }
+            }
+
+            return ioCount;
+        } finally {
+            for (ParallelReadTask task : inFlightTasks) {
+                if (task.mFuture.cancel(false) || task.mFuture.isDone()) {
+                    // Already read data is thrown away with the buffer.
+                    transfer.onRead(task.getDoneCount());
+                    recycleBuffer(task.mBuffer);
+                }
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getParallelExecutor() {
+        if (sParallelExecutor == null) {
+            sParallelExecutor = Executors.newFixedThreadPool(
+                    PARALLEL_THREAD_COUNT, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "MediaParallelReader");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+
+        return sParallelExecutor;
+    }
+
+
+    private class ParallelReadTask implements Callable<Integer> {
+
+        private long mPosition;
+        private byte[] mBuffer;
+        private int mCount;
+        private MediaTransfer mTransfer;
+        private Future<Integer> mFuture;
+
+        ParallelReadTask(long position, byte[] buffer, int count, MediaTransfer transfer) {
+            mPosition = position;
+            mBuffer = buffer;
+            mCount = count;
+            mTransfer = transfer;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            mTransfer.checkCancelled();
+
+            // Reads of the tasks are out of order, the writer feeds the read-ahead stage.
+            return readThroughCache(mPosition, mBuffer, 0, mCount);
+        }
+
+        int getResult() throws IOException {
+            try {
+                return mFuture.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Parallel Read Interrupted!");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+
+                throw new IOException(String.valueOf(cause));
+            }
+        }
+
+        /**
+         * @return bytes read by a finished task, 0 if still running or failed.
+         */
+        int getDoneCount() {
+            if (!mFuture.isDone()) {
+                return 0;
+            }
+
+            try {
+                return Math.max(0, mFuture.get());
+            } catch (Exception e) {
+                return 0;
+            }
+        }
     }
 }
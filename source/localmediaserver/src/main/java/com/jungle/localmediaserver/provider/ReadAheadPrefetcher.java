@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.provider;
+
+import com.jungle.localmediaserver.ServerHttpSession;
+import com.jungle.localmediaserver.log.MediaLog;
+import com.jungle.localmediaserver.stats.ServerStats;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Read-ahead stage of a provider, prefetching into its BlockCache.
+ *
+ * Served reads are matched against the recent read streams of the provider
+ * (players may keep several connections, e.g. one at the moov atom):
+ *
+ *      read at a stream's next position -> sequential, keep the window
+ *                                          [next, next + windowSize) prefetched
+ *      read anywhere else               -> seek, pending prefetches are cancelled
+ *                                          and the least recently used stream restarts
+ *
+ * Blocks are loaded on one shared background thread, and the window is limited
+ * to half of the cache, so read-ahead does not evict the blocks being served.
+ */
+class ReadAheadPrefetcher {
+
+    private static final String TAG = ServerHttpSession.TAG;
+
+    private static final int MAX_STREAMS = 4;
+    private static final int SEQUENTIAL_READS_TO_PREFETCH = 2;
+
+    /**
+     * Longest wait of close() for the block being loaded.
+     */
+    private static final long CLOSE_TIMEOUT = 1000;
+
+    private static ExecutorService sPrefetchExecutor;
+
+
+    private RawFileMediaProvider mProvider;
+    private int mWindowSize;
+    private ReadStream[] mStreams = new ReadStream[MAX_STREAMS];
+    private long mReadClock;
+    private int mRunningTaskCount;
+    private volatile boolean mIsClosed = false;
+
+
+    ReadAheadPrefetcher(RawFileMediaProvider provider, int windowSize) {
+        mProvider = provider;
+        mWindowSize = windowSize;
+        for (int i = 0; i < MAX_STREAMS; ++i) {
+            mStreams[i] = new ReadStream();
+        }
+    }
+
+    int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /**
+     * Cancel pending prefetches and wait for the running one, so no block is
+     * put after the provider released its cache.
+     */
+    void close() {
+        mIsClosed = true;
+        synchronized (this) {
+            for (ReadStream stream : mStreams) {
+                stream.cancel();
+            }
+
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+            while (mRunningTaskCount > 0) {
+                long waitTime = deadline - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    MediaLog.w(TAG, "Read-Ahead Still Running After Close!");
+                    break;
+                }
+
+                try {
+                    wait(waitTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    synchronized void onRead(long position, int count) {
+        BlockCache blockCache = mProvider.getBlockCache();
+        if (mIsClosed || blockCache == null) {
+            return;
+        }
+
+        final int blockSize = blockCache.getBlockSize();
+        ReadStream stream = findStream(position, blockSize);
+        if (stream == null) {
+            for (ReadStream other : mStreams) {
+                other.cancel();
+            }
+
+            stream = findLeastRecentStream();
+            stream.mSequentialCount = 0;
+        }
+
+        long end = position + count;
+        stream.mNextPosition = end;
+        stream.mLastReadClock = ++mReadClock;
+        if (++stream.mSequentialCount < SEQUENTIAL_READS_TO_PREFETCH) {
+            return;
+        }
+
+        int windowSize = (int) Math.min(mWindowSize, blockCache.getMemoryBudget() / 2);
+        long windowEnd = Math.min(end + windowSize, mProvider.getAvailableLength());
+
+        // Refill when less than half of the window is left.
+        if (stream.mPrefetchEnd - end >= windowSize / 2 || windowEnd <= end) {
+            return;
+        }
+
+        long from = Math.max(stream.mPrefetchEnd, end);
+        stream.mPrefetchEnd = windowEnd;
+        getPrefetchExecutor().execute(new PrefetchTask(
+                stream, stream.mGeneration, blockCache, from / blockSize,
+                (windowEnd + blockSize - 1) / blockSize));
+    }
+
+    private ReadStream findStream(long position, int blockSize) {
+        for (ReadStream stream : mStreams) {
+            if (stream.mSequentialCount > 0
+                    && Math.abs(position - stream.mNextPosition) <= blockSize) {
+                return stream;
+            }
+        }
+
+        return null;
+    }
+
+    private ReadStream findLeastRecentStream() {
+        ReadStream result = mStreams[0];
+        for (ReadStream stream : mStreams) {
+            if (stream.mLastReadClock < result.mLastReadClock) {
+                result = stream;
+            }
+        }
+
+        return result;
+    }
+
+    private static synchronized ExecutorService getPrefetchExecutor() {
+        if (sPrefetchExecutor == null) {
+            sPrefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MediaPrefetcher");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+
+        return sPrefetchExecutor;
+    }
+
+
+    private static class ReadStream {
+
+        private long mNextPosition;
+        private long mPrefetchEnd;
+        private int mSequentialCount;
+        private long mLastReadClock;
+        private volatile int mGeneration;
+
+        /**
+         * Stop pending prefetches, they are restarted by the next sequential read.
+         */
+        void cancel() {
+            ++mGeneration;
+            mPrefetchEnd = 0;
+        }
+    }
+
+
+    private class PrefetchTask implements Runnable {
+
+        private ReadStream mStream;
+        private int mGeneration;
+        private BlockCache mBlockCache;
+        private long mFromBlock;
+        private long mToBlock;
+
+        PrefetchTask(ReadStream stream, int generation,
+                     BlockCache blockCache, long fromBlock, long toBlock) {
+
+            mStream = stream;
+            mGeneration = generation;
+            mBlockCache = blockCache;
+            mFromBlock = fromBlock;
+            mToBlock = toBlock;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ReadAheadPrefetcher.this) {
+                if (mIsClosed) {
+                    return;
+                }
+
+                ++mRunningTaskCount;
+            }
+
+            try {
+                prefetch();
+            } finally {
+                synchronized (ReadAheadPrefetcher.this) {
+                    --mRunningTaskCount;
+                    ReadAheadPrefetcher.this.notifyAll();
+                }
+            }
+        }
+
+        private void prefetch() {
+            byte[] block = mProvider.obtainBuffer(mBlockCache.getBlockSize());
+            ServerStats stats = mProvider.getStats();
+            try {
+                for (long blockIndex = mFromBlock; blockIndex < mToBlock; ++blockIndex) {
+                    if (mIsClosed || mStream.mGeneration != mGeneration) {
+                        return;
+                    }
+
+                    if (mBlockCache.contains(blockIndex)) {
+                        continue;
+                    }
+
+                    if (mProvider.loadBlock(mBlockCache, blockIndex, block, true) <= 0) {
+                        return;
+                    }
+
+                    if (stats != null) {
+                        stats.onPrefetch();
+                    }
+                }
+            } catch (Exception e) {
+                MediaLog.w(TAG, "Read-Ahead FAILED!", e);
+            } finally {
+                mProvider.recycleBuffer(block);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Lock-free histogram of non-negative values with power-of-two buckets.
+ *
+ *      bucket 0: 0
+ *      bucket 1: 1
+ *      bucket 2: 2 - 3
+ *      bucket n: 2^(n-1) - 2^n - 1
+ *
+ * Percentiles are reported as the upper bound of their bucket, so they are
+ * at most twice the exact value. Recording is one atomic increment plus one
+ * striped add, cheap enough for every request.
+ */
+public class Histogram {
+
+    public static final int BUCKET_COUNT = 64;
+
+
+    private AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private StripedCounter mSum = new StripedCounter();
+
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        mBuckets.incrementAndGet(getBucket(value));
+        mSum.add(value);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            count += mBuckets.get(i);
+        }
+
+        return count;
+    }
+
+    public long getSum() {
+        return mSum.sum();
+    }
+
+    public long getMean() {
+        long count = getCount();
+        return count > 0 ? getSum() / count : 0;
+    }
+
+    /**
+     * @param percentile in (0, 100].
+     * @return upper bound of the bucket holding the percentile, 0 if empty.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getBucketCounts();
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return getBucketUpperBound(i);
+            }
+        }
+
+        return 0;
+    }
+
+    public long[] getBucketCounts() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts[i] = mBuckets.get(i);
+        }
+
+        return counts;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            mBuckets.set(i, 0);
+        }
+
+        mSum.reset();
+    }
+
+    static int getBucket(long value) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    public static long getBucketUpperBound(int bucket) {
+        return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.stats;
+
+/*
+ * Timeline of one request, filled by its session and passed to
+ * ServerStatsListener.onRequestFinished().
+ *
+ *      begin()        request header parsed
+ *      onResponse()   status & body decided
+ *      onFirstByte()  first response byte handed to the socket   -> time to first byte
+ *      end()          body sent, or the connection failed        -> duration
+ *
+ * Each session reuses its trace for all of its requests, so listeners must
+ * copy what they keep.
+ */
+public class RequestTrace {
+
+    private String mUri;
+    private long mStartTime;
+    private long mStartNanos;
+    private long mFirstByteNanos;
+    private long mEndNanos;
+    private int mStatusCode;
+    private long mRangeStart;
+    private long mBodyLength;
+    private long mBytesSent;
+    private boolean mIsCompleted;
+
+
+    public void begin(String uri) {
+        mUri = uri;
+        mStartTime = System.currentTimeMillis();
+        mStartNanos = System.nanoTime();
+        mFirstByteNanos = 0;
+        mEndNanos = 0;
+        mStatusCode = 0;
+        mRangeStart = 0;
+        mBodyLength = 0;
+        mBytesSent = 0;
+        mIsCompleted = false;
+    }
+
+    public void onResponse(int statusCode, long rangeStart, long bodyLength) {
+        mStatusCode = statusCode;
+        mRangeStart = rangeStart;
+        mBodyLength = bodyLength;
+    }
+
+    /**
+     * @param nanoTime System.nanoTime() of the first write, only the first call counts.
+     */
+    public void onFirstByte(long nanoTime) {
+        if (mFirstByteNanos == 0 && nanoTime != 0) {
+            mFirstByteNanos = nanoTime;
+        }
+    }
+
+    public void onBytesSent(long count) {
+        mBytesSent += count;
+    }
+
+    public void end(boolean completed) {
+        mEndNanos = System.nanoTime();
+        mIsCompleted = completed;
+        if (mFirstByteNanos == 0 && completed) {
+            mFirstByteNanos = mEndNanos;
+        }
+    }
+
+    /**
+     * @return uri of the request, null if its header could not be parsed.
+     */
+    public String getUri() {
+        return mUri;
+    }
+
+    /**
+     * Wall clock time the request arrived, to match with player side logs.
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * @return start of the first requested range, 0 for full responses.
+     */
+    public long getRangeStart() {
+        return mRangeStart;
+    }
+
+    public long getBodyLength() {
+        return mBodyLength;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return false if the connection failed before the whole body was sent.
+     */
+    public boolean isCompleted() {
+        return mIsCompleted;
+    }
+
+    /**
+     * @return -1 if nothing was sent.
+     */
+    public long getTimeToFirstByteNanos() {
+        return mFirstByteNanos != 0 ? mFirstByteNanos - mStartNanos : -1;
+    }
+
+    public long getDurationNanos() {
+        return mEndNanos - mStartNanos;
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.stats;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Metrics of one LocalMediaServer, see LocalMediaServer.getStats().
+ *
+ *      sessions  -> active sessions, sessions
+ *      requests  -> requests, errors, aborted, requests per second,
+ *                   time to first byte & duration histograms (us), range sizes (bytes)
+ *      body      -> bytes sent, transfers cancelled, bytes read but wasted
+ *      providers -> file reads & decrypts (count, bytes, time),
+ *                   block cache hits / misses, blocks prefetched & read after prefetch
+ *
+ * All counters are striped, recording never takes a lock. Reads are not an
+ * atomic snapshot, counters may be a few events apart.
+ *
+ * With ServerConfig.setStatsEndpointEnabled(), "GET /_stats" returns toJson().
+ */
+public class ServerStats {
+
+    /**
+     * Request path of the stats endpoint.
+     */
+    public static final String ENDPOINT_PATH = "_stats";
+
+
+    private AtomicInteger mActiveSessions = new AtomicInteger();
+    private StripedCounter mSessionCount = new StripedCounter();
+    private StripedCounter mRequestCount = new StripedCounter();
+    private StripedCounter mErrorCount = new StripedCounter();
+    private StripedCounter mAbortedCount = new StripedCounter();
+    private StripedCounter mBytesSent = new StripedCounter();
+    private StripedCounter mCancelledCount = new StripedCounter();
+    private StripedCounter mWastedBytes = new StripedCounter();
+    private RateMeter mRequestRate = new RateMeter();
+    private Histogram mTimeToFirstByte = new Histogram();
+    private Histogram mDuration = new Histogram();
+    private Histogram mRangeSize = new Histogram();
+
+    private StripedCounter mReadCount = new StripedCounter();
+    private StripedCounter mReadBytes = new StripedCounter();
+    private StripedCounter mReadNanos = new StripedCounter();
+    private StripedCounter mDecryptBytes = new StripedCounter();
+    private StripedCounter mDecryptNanos = new StripedCounter();
+    private StripedCounter mCacheHitCount = new StripedCounter();
+    private StripedCounter mCacheMissCount = new StripedCounter();
+    private StripedCounter mPrefetchCount = new StripedCounter();
+    private StripedCounter mPrefetchHitCount = new StripedCounter();
+
+    private volatile ServerStatsListener mListener;
+
+
+    /**
+     * Listener of finished requests, null to remove.
+     */
+    public void setListener(ServerStatsListener listener) {
+        mListener = listener;
+    }
+
+    public ServerStatsListener getListener() {
+        return mListener;
+    }
+
+    public void onSessionStarted() {
+        mActiveSessions.incrementAndGet();
+        mSessionCount.increment();
+    }
+
+    public void onSessionFinished() {
+        mActiveSessions.decrementAndGet();
+    }
+
+    public void onRequestFinished(RequestTrace trace) {
+        mRequestCount.increment();
+        mRequestRate.mark(System.nanoTime());
+        mBytesSent.add(trace.getBytesSent());
+
+        int statusCode = trace.getStatusCode();
+        if (statusCode >= 400 || statusCode == 0) {
+            mErrorCount.increment();
+        } else if (!trace.isCompleted()) {
+            mAbortedCount.increment();
+        }
+
+        long timeToFirstByte = trace.getTimeToFirstByteNanos();
+        if (timeToFirstByte >= 0) {
+            mTimeToFirstByte.record(TimeUnit.NANOSECONDS.toMicros(timeToFirstByte));
+        }
+
+        mDuration.record(TimeUnit.NANOSECONDS.toMicros(trace.getDurationNanos()));
+        if (statusCode == 206) {
+            mRangeSize.record(trace.getBodyLength());
+        }
+
+        ServerStatsListener listener = mListener;
+        if (listener != null) {
+            listener.onRequestFinished(trace);
+        }
+    }
+
+    /**
+     * Called when a body transfer is cancelled, because its client left or a
+     * newer request of the same player superseded it.
+     */
+    public void onTransferCancelled() {
+        mCancelledCount.increment();
+    }
+
+    /**
+     * Called at the end of each body transfer with the bytes read (or decrypted)
+     * for it but never sent.
+     */
+    public void onWastedBytes(long count) {
+        if (count > 0) {
+            mWastedBytes.add(count);
+        }
+    }
+
+    /**
+     * Called by providers for each read from the file.
+     */
+    public void onProviderRead(int count, long nanos) {
+        mReadCount.increment();
+        mReadBytes.add(Math.max(0, count));
+        mReadNanos.add(nanos);
+    }
+
+    public void onProviderDecrypt(int count, long nanos) {
+        mDecryptBytes.add(Math.max(0, count));
+        mDecryptNanos.add(nanos);
+    }
+
+    public void onCacheRead(boolean hit) {
+        (hit ? mCacheHitCount : mCacheMissCount).increment();
+    }
+
+    /**
+     * Called for each block loaded by the read-ahead stage.
+     */
+    public void onPrefetch() {
+        mPrefetchCount.increment();
+    }
+
+    /**
+     * Called on the first read of a prefetched block.
+     */
+    public void onPrefetchHit() {
+        mPrefetchHitCount.increment();
+    }
+
+    public int getActiveSessions() {
+        return mActiveSessions.get();
+    }
+
+    public long getSessionCount() {
+        return mSessionCount.sum();
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.sum();
+    }
+
+    public long getErrorCount() {
+        return mErrorCount.sum();
+    }
+
+    /**
+     * @return count of responses whose connection failed before the body was sent.
+     */
+    public long getAbortedCount() {
+        return mAbortedCount.sum();
+    }
+
+    /**
+     * @return average over the last 5 complete seconds.
+     */
+    public double getRequestsPerSecond() {
+        return mRequestRate.getRate(System.nanoTime());
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.sum();
+    }
+
+    public long getCancelledCount() {
+        return mCancelledCount.sum();
+    }
+
+    public long getWastedBytes() {
+        return mWastedBytes.sum();
+    }
+
+    /**
+     * Time to first byte of responses in microseconds.
+     */
+    public Histogram getTimeToFirstByte() {
+        return mTimeToFirstByte;
+    }
+
+    /**
+     * Duration of responses in microseconds.
+     */
+    public Histogram getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * Body length of 206 responses in bytes.
+     */
+    public Histogram getRangeSize() {
+        return mRangeSize;
+    }
+
+    public long getReadCount() {
+        return mReadCount.sum();
+    }
+
+    public long getReadBytes() {
+        return mReadBytes.sum();
+    }
+
+    public long getReadTimeNanos() {
+        return mReadNanos.sum();
+    }
+
+    public long getDecryptBytes() {
+        return mDecryptBytes.sum();
+    }
+
+    public long getDecryptTimeNanos() {
+        return mDecryptNanos.sum();
+    }
+
+    public long getCacheHitCount() {
+        return mCacheHitCount.sum();
+    }
+
+    public long getCacheMissCount() {
+        return mCacheMissCount.sum();
+    }
+
+    public double getCacheHitRate() {
+        return getRate(getCacheHitCount(), getCacheHitCount() + getCacheMissCount());
+    }
+
+    public long getPrefetchCount() {
+        return mPrefetchCount.sum();
+    }
+
+    public long getPrefetchHitCount() {
+        return mPrefetchHitCount.sum();
+    }
+
+    /**
+     * @return part of the prefetched blocks which were read before being evicted.
+     */
+    public double getPrefetchHitRate() {
+        return getRate(getPrefetchHitCount(), getPrefetchCount());
+    }
+
+    /**
+     * Reset all counters but the active sessions.
+     */
+    public void reset() {
+        mSessionCount.reset();
+        mRequestCount.reset();
+        mErrorCount.reset();
+        mAbortedCount.reset();
+        mBytesSent.reset();
+        mCancelledCount.reset();
+        mWastedBytes.reset();
+        mRequestRate.reset();
+        mTimeToFirstByte.reset();
+        mDuration.reset();
+        mRangeSize.reset();
+        mReadCount.reset();
+        mReadBytes.reset();
+        mReadNanos.reset();
+        mDecryptBytes.reset();
+        mDecryptNanos.reset();
+        mCacheHitCount.reset();
+        mCacheMissCount.reset();
+        mPrefetchCount.reset();
+        mPrefetchHitCount.reset();
+    }
+
+    public String toJson() {
+        StringBuilder builder = new StringBuilder(1024);
+        builder.append('{');
+        appendValue(builder, "activeSessions", getActiveSessions());
+        appendValue(builder, "sessions", getSessionCount());
+        appendValue(builder, "requests", getRequestCount());
+        appendValue(builder, "errors", getErrorCount());
+        appendValue(builder, "aborted", getAbortedCount());
+        appendValue(builder, "requestsPerSecond", getRequestsPerSecond());
+        appendValue(builder, "bytesSent", getBytesSent());
+        appendValue(builder, "cancelled", getCancelledCount());
+        appendValue(builder, "wastedBytes", getWastedBytes());
+        appendHistogram(builder, "timeToFirstByteUs", mTimeToFirstByte);
+        appendHistogram(builder, "durationUs", mDuration);
+        appendHistogram(builder, "rangeSizeBytes", mRangeSize);
+        appendValue(builder, "readCount", getReadCount());
+        appendValue(builder, "readBytes", getReadBytes());
+        appendValue(builder, "readTimeUs", TimeUnit.NANOSECONDS.toMicros(getReadTimeNanos()));
+        appendValue(builder, "decryptBytes", getDecryptBytes());
+        appendValue(builder, "decryptTimeUs",
+                TimeUnit.NANOSECONDS.toMicros(getDecryptTimeNanos()));
+        appendValue(builder, "cacheHits", getCacheHitCount());
+        appendValue(builder, "cacheMisses", getCacheMissCount());
+        appendValue(builder, "cacheHitRate", getCacheHitRate());
+        appendValue(builder, "prefetches", getPrefetchCount());
+        appendValue(builder, "prefetchHits", getPrefetchHitCount());
+        appendValue(builder, "prefetchHitRate", getPrefetchHitRate());
+
+        builder.setLength(builder.length() - 1);
+        builder.append('}');
+        return builder.toString();
+    }
+
+    private static void appendHistogram(StringBuilder builder, String name, Histogram histogram) {
+        builder.append('"').append(name).append("\":{");
+        appendValue(builder, "count", histogram.getCount());
+        appendValue(builder, "mean", histogram.getMean());
+        appendValue(builder, "p50", histogram.getPercentile(50));
+        appendValue(builder, "p90", histogram.getPercentile(90));
+        appendValue(builder, "p99", histogram.getPercentile(99));
+        appendValue(builder, "max", histogram.getPercentile(100));
+        builder.setLength(builder.length() - 1);
+        builder.append("},");
+    }
+
+    private static void appendValue(StringBuilder builder, String name, long value) {
+        builder.append('"').append(name).append("\":").append(value).append(',');
+    }
+
+    private static void appendValue(StringBuilder builder, String name, double value) {
+        builder.append('"').append(name).append("\":")
+                .append(String.format(Locale.US, "%.3f", value)).append(',');
+    }
+
+    private static double getRate(long count, long total) {
+        return total > 0 ? (double) count / total : 0;
+    }
+
+
+    /**
+     * Events per second over the last complete seconds, kept in a ring of
+     * one-second slots. Slots are reset without a lock, so an event racing
+     * with the reset of its slot may be lost.
+     */
+    private static class RateMeter {
+
+        private static final int SLOT_COUNT = 8;
+        private static final int WINDOW_SECONDS = 5;
+
+        private AtomicLongArray mSlotSeconds = new AtomicLongArray(SLOT_COUNT);
+        private AtomicLongArray mSlotCounts = new AtomicLongArray(SLOT_COUNT);
+
+        void mark(long nanoTime) {
+            long second = TimeUnit.NANOSECONDS.toSeconds(nanoTime);
+            int slot = (int) (second & (SLOT_COUNT - 1));
+            long slotSecond = mSlotSeconds.get(slot);
+            if (slotSecond != second && mSlotSeconds.compareAndSet(slot, slotSecond, second)) {
+                mSlotCounts.set(slot, 0);
+            }
+
+            mSlotCounts.incrementAndGet(slot);
+        }
+
+        double getRate(long nanoTime) {
+            long second = TimeUnit.NANOSECONDS.toSeconds(nanoTime);
+            long count = 0;
+            for (int slot = 0; slot < SLOT_COUNT; ++slot) {
+                long slotSecond = mSlotSeconds.get(slot);
+                if (slotSecond < second && slotSecond >= second - WINDOW_SECONDS) {
+                    count += mSlotCounts.get(slot);
+                }
+            }
+
+            return (double) count / WINDOW_SECONDS;
+        }
+
+        void reset() {
+            for (int slot = 0; slot < SLOT_COUNT; ++slot) {
+                mSlotSeconds.set(slot, 0);
+                mSlotCounts.set(slot, 0);
+            }
+        }
+    }
+}
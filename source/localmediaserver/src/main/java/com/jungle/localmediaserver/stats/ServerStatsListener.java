@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.stats;
+
+/*
+ * Per-request callback of ServerStats, see ServerStats.setListener().
+ *
+ * Called on the session's thread (the selector thread for SelectorEngine),
+ * so implementations should only record the trace and return.
+ */
+public interface ServerStatsListener {
+
+    /**
+     * @param trace reused by the session, valid only during this call.
+     */
+    void onRequestFinished(RequestTrace trace);
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016. All Rights Reserved.
+ *
+ * @author  Arno Zhang
+ * @email   zyfgood12@163.com
+ * @date    2016/01/21
+ */
+
+package com.jungle.localmediaserver.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Counter updated by many threads without contention, like LongAdder
+ * (API 24) on the Android versions we support.
+ *
+ *      add() on thread t -> cell[hash(t) % STRIPE_COUNT]  (one cache line per cell)
+ *      sum()             -> cell[0] + cell[1] + ... (not an atomic snapshot)
+ */
+public class StripedCounter {
+
+    private static final int STRIPE_COUNT = 8;
+
+    /**
+     * Cells are 8 longs (64 bytes) apart, so they never share a cache line.
+     */
+    private static final int CELL_STRIDE = 8;
+
+
+    private AtomicLongArray mCells = new AtomicLongArray(STRIPE_COUNT * CELL_STRIDE);
+
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long value) {
+        mCells.addAndGet(getCellIndex(), value);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPE_COUNT; ++i) {
+            sum += mCells.get(i * CELL_STRIDE);
+        }
+
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPE_COUNT; ++i) {
+            mCells.set(i * CELL_STRIDE, 0);
+        }
+    }
+
+    private static int getCellIndex() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash >>> 16) & (STRIPE_COUNT - 1)) * CELL_STRIDE;
+    }
+}